@@ -8,4 +8,9 @@ public class AdditiveExpression extends CompoundExpressionNode
 	{
 		super(data);
 	}
+
+	protected ExpressionNode createEmptyCopy()
+	{
+		return new AdditiveExpression(getData());
+	}
 }
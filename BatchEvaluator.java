@@ -0,0 +1,294 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates one expression over many rows of variable values at once. The values of every variable
+ * come in their own column (a double array, one entry per row), and the results are written into an
+ * output column. The expression is compiled into a short list of instructions that each work on a
+ * whole chunk of rows, e.g. "add column x to register 0", so the inner loops are simple array loops
+ * that the JIT can vectorize. Large inputs can be split across cores with fork/join.
+ */
+public class BatchEvaluator
+{
+	/**
+	 * Number of rows every instruction works on at once.
+	 */
+	public static final int CHUNK_SIZE = 1024;
+
+	/**
+	 * Smallest number of rows that evaluateParallel hands to a single task.
+	 */
+	public static final int ROWS_PER_TASK = 64 * CHUNK_SIZE;
+
+	/**
+	 * Instructions. Every instruction changes register _targets[i]: LOAD_* overwrite it, ADD_* and
+	 * MULTIPLY_* combine it with a variable column, a constant or the register _operands[i].
+	 */
+	private static final int LOAD_VARIABLE = 0, LOAD_CONSTANT = 1, ADD_VARIABLE = 2, ADD_CONSTANT = 3,
+			ADD_REGISTER = 4, MULTIPLY_VARIABLE = 5, MULTIPLY_CONSTANT = 6, MULTIPLY_REGISTER = 7;
+
+	private int[] _opcodes = new int[16], _targets = new int[16], _operands = new int[16];
+	private double[] _constants = new double[16];
+	private int _numberOfInstructions, _numberOfRegisters;
+	private final boolean[] _usedVariables = new boolean[ExpressionCompiler.NUMBER_OF_VARIABLES];
+
+	/**
+	 * Compiles an expression for batch evaluation.
+	 * @param expression the expression
+	 * @throws IllegalArgumentException if the expression has a literal that is neither a number nor a variable
+	 */
+	public BatchEvaluator(Expression expression)
+	{
+		compile((ExpressionNode)expression);
+	}
+
+	/**
+	 * Emits the instructions that leave the value of the tree in register 0. Every node is compiled into
+	 * a register: the first child of a sum or product into the register of its parent, and every other
+	 * child that is not a literal into the next register, which is then added to or multiplied into the
+	 * parent's register. Registers below the target register hold values that are still needed, so
+	 * registers work like a stack. The tree is walked with explicit stacks, so it may be arbitrarily deep.
+	 * @param root the root of the tree
+	 */
+	private void compile(ExpressionNode root)
+	{
+		// For every sum and product on the stack: its register, the index of its next child, and whether
+		// the child before that was compiled into the next register and still has to be combined
+		final ArrayDeque<ExpressionNode> parents = new ArrayDeque<ExpressionNode>();
+		final ArrayDeque<int[]> states = new ArrayDeque<int[]>();
+		ExpressionNode node = root;
+		int register = 0;
+		while(node != null)
+		{
+			_numberOfRegisters = Math.max(_numberOfRegisters, register + 1);
+			while(SharedExpression.kindOf(node) == SharedExpression.PARENTHETICAL)
+			{
+				node = node.getChildren().get(0);
+			}
+			if(SharedExpression.kindOf(node) == SharedExpression.LITERAL)
+			{
+				emitOperand(LOAD_VARIABLE, LOAD_CONSTANT, register, node.getData());
+			}
+			else
+			{
+				parents.push(node);
+				states.push(new int[] { register, 0, 0 });
+			}
+			node = null;
+			while(node == null && !parents.isEmpty())
+			{
+				ExpressionNode parent = parents.peek();
+				int[] state = states.peek();
+				boolean additive = SharedExpression.kindOf(parent) == SharedExpression.ADDITIVE;
+				if(state[2] != 0)
+				{
+					emit(additive ? ADD_REGISTER : MULTIPLY_REGISTER, state[0], state[0] + 1, 0);
+					state[2] = 0;
+				}
+				List<ExpressionNode> children = parent.getChildren();
+				if(state[1] == children.size())
+				{
+					parents.pop();
+					states.pop();
+					continue;
+				}
+				ExpressionNode child = children.get(state[1]++);
+				if(state[1] == 1)
+				{
+					node = child;
+					register = state[0];
+				}
+				else if(child instanceof LiteralExpression)
+				{
+					// Literals are combined straight from their column or constant, without a register
+					emitOperand(additive ? ADD_VARIABLE : MULTIPLY_VARIABLE, additive ? ADD_CONSTANT : MULTIPLY_CONSTANT, state[0], child.getData());
+				}
+				else
+				{
+					node = child;
+					register = state[0] + 1;
+					state[2] = 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Emits the instruction for a literal operand.
+	 */
+	private void emitOperand(int variableOpcode, int constantOpcode, int register, String literal)
+	{
+		int slot = ExpressionCompiler.getVariableSlot(literal);
+		if(slot >= 0)
+		{
+			_usedVariables[slot] = true;
+			emit(variableOpcode, register, slot, 0);
+			return;
+		}
+		double value = ExpressionCompiler.getNumber(literal);
+		if(Double.isNaN(value))
+		{
+			throw new IllegalArgumentException("Cannot evaluate literal: " + literal);
+		}
+		emit(constantOpcode, register, 0, value);
+	}
+
+	private void emit(int opcode, int target, int operand, double constant)
+	{
+		if(_numberOfInstructions == _opcodes.length)
+		{
+			_opcodes = Arrays.copyOf(_opcodes, 2 * _numberOfInstructions);
+			_targets = Arrays.copyOf(_targets, 2 * _numberOfInstructions);
+			_operands = Arrays.copyOf(_operands, 2 * _numberOfInstructions);
+			_constants = Arrays.copyOf(_constants, 2 * _numberOfInstructions);
+		}
+		_opcodes[_numberOfInstructions] = opcode;
+		_targets[_numberOfInstructions] = target;
+		_operands[_numberOfInstructions] = operand;
+		_constants[_numberOfInstructions] = constant;
+		_numberOfInstructions++;
+	}
+
+	/**
+	 * Evaluates the expression for every row on the calling thread.
+	 * @param columns the value columns, indexed by variable slot (columns[0] for a, ..., columns[25] for z);
+	 * columns of variables that the expression does not use may be null
+	 * @param output the column the results are written to
+	 * @param numberOfRows the number of rows to evaluate
+	 */
+	public void evaluate(double[][] columns, double[] output, int numberOfRows)
+	{
+		checkColumns(columns, output, numberOfRows);
+		evaluateRows(columns, output, 0, numberOfRows, new double[_numberOfRegisters][CHUNK_SIZE]);
+	}
+
+	/**
+	 * Evaluates the expression for every row, splitting the rows into tasks for the common fork/join pool.
+	 * @param columns the value columns, indexed by variable slot
+	 * @param output the column the results are written to
+	 * @param numberOfRows the number of rows to evaluate
+	 */
+	public void evaluateParallel(double[][] columns, double[] output, int numberOfRows)
+	{
+		checkColumns(columns, output, numberOfRows);
+		ForkJoinPool.commonPool().invoke(new EvaluationTask(columns, output, 0, numberOfRows));
+	}
+
+	private void checkColumns(double[][] columns, double[] output, int numberOfRows)
+	{
+		for(int slot = 0; slot < _usedVariables.length; slot++)
+		{
+			if(_usedVariables[slot] && (slot >= columns.length || columns[slot] == null || columns[slot].length < numberOfRows))
+			{
+				throw new IllegalArgumentException("Missing or short column for variable " + (char)('a' + slot));
+			}
+		}
+		if(output.length < numberOfRows)
+		{
+			throw new IllegalArgumentException("Output column is shorter than " + numberOfRows + " rows");
+		}
+	}
+
+	/**
+	 * Evaluates the rows from start to end, one chunk at a time.
+	 * @param registers the registers, each CHUNK_SIZE long
+	 */
+	private void evaluateRows(double[][] columns, double[] output, int start, int end, double[][] registers)
+	{
+		for(int chunkStart = start; chunkStart < end; chunkStart += CHUNK_SIZE)
+		{
+			int length = Math.min(CHUNK_SIZE, end - chunkStart);
+			for(int i = 0; i < _numberOfInstructions; i++)
+			{
+				double[] target = registers[_targets[i]];
+				double constant = _constants[i];
+				switch(_opcodes[i])
+				{
+					case LOAD_VARIABLE:
+						System.arraycopy(columns[_operands[i]], chunkStart, target, 0, length);
+						break;
+					case LOAD_CONSTANT:
+						Arrays.fill(target, 0, length, constant);
+						break;
+					case ADD_VARIABLE:
+						double[] addend = columns[_operands[i]];
+						for(int row = 0; row < length; row++)
+						{
+							target[row] += addend[chunkStart + row];
+						}
+						break;
+					case ADD_CONSTANT:
+						for(int row = 0; row < length; row++)
+						{
+							target[row] += constant;
+						}
+						break;
+					case ADD_REGISTER:
+						double[] addendRegister = registers[_operands[i]];
+						for(int row = 0; row < length; row++)
+						{
+							target[row] += addendRegister[row];
+						}
+						break;
+					case MULTIPLY_VARIABLE:
+						double[] factor = columns[_operands[i]];
+						for(int row = 0; row < length; row++)
+						{
+							target[row] *= factor[chunkStart + row];
+						}
+						break;
+					case MULTIPLY_CONSTANT:
+						for(int row = 0; row < length; row++)
+						{
+							target[row] *= constant;
+						}
+						break;
+					default:
+						double[] factorRegister = registers[_operands[i]];
+						for(int row = 0; row < length; row++)
+						{
+							target[row] *= factorRegister[row];
+						}
+				}
+			}
+			System.arraycopy(registers[0], 0, output, chunkStart, length);
+		}
+	}
+
+	/**
+	 * A fork/join task that evaluates a range of rows, splitting it in half while it is large.
+	 */
+	private class EvaluationTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final double[][] _columns;
+		private final double[] _output;
+		private final int _start, _end;
+
+		EvaluationTask(double[][] columns, double[] output, int start, int end)
+		{
+			_columns = columns;
+			_output = output;
+			_start = start;
+			_end = end;
+		}
+
+		protected void compute()
+		{
+			if(_end - _start <= ROWS_PER_TASK)
+			{
+				evaluateRows(_columns, _output, _start, _end, new double[_numberOfRegisters][CHUNK_SIZE]);
+			}
+			else
+			{
+				// Split on a chunk boundary
+				int middle = _start + (_end - _start) / 2 / CHUNK_SIZE * CHUNK_SIZE;
+				invokeAll(new EvaluationTask(_columns, _output, _start, middle), new EvaluationTask(_columns, _output, middle, _end));
+			}
+		}
+	}
+}
@@ -0,0 +1,423 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Parses files or streams of newline-delimited expressions, one expression per line. Blank lines are
+ * skipped and a carriage return before the newline is ignored. Every other line becomes a ParsedLine
+ * that holds either the expression or the ExpressionParseException of the line, with the line number
+ * and the offset of the line in the input, so bad lines are reported without stopping the rest.
+ *
+ * A reader thread reads and parses the input and puts the results into a bounded queue, from which
+ * they are handed to a consumer or a Stream in the order of the lines. When the consumer is slower,
+ * the queue fills up and the reader waits, so no more than the capacity of the queue is ever held in
+ * memory besides the current line, however large the input is. Regular files are read through memory
+ * mappings of SEGMENT_SIZE bytes at a time, everything else through a buffer.
+ */
+
+public class BulkExpressionParser
+{
+	/**
+	 * Number of bytes of a file that are mapped at a time.
+	 */
+	public static final long SEGMENT_SIZE = 1L << 26;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Marks the end of the input in a queue.
+	 */
+	private static final ParsedLine END = new ParsedLine(0, 0, null, null, null);
+
+	/**
+	 * A parsed line: its expression, or the reason it could not be parsed.
+	 */
+	public static class ParsedLine
+	{
+		private final long _lineNumber, _offset;
+		private final String _text;
+		private final Expression _expression;
+		private final ExpressionParseException _error;
+
+		private ParsedLine(long lineNumber, long offset, String text, Expression expression, ExpressionParseException error)
+		{
+			_lineNumber = lineNumber;
+			_offset = offset;
+			_text = text;
+			_expression = expression;
+			_error = error;
+		}
+
+		/**
+		 * @return the number of the line, counting from 1 and including blank lines
+		 */
+		public long getLineNumber()
+		{
+			return _lineNumber;
+		}
+
+		/**
+		 * @return the offset in bytes of the start of the line in the input
+		 */
+		public long getOffset()
+		{
+			return _offset;
+		}
+
+		/**
+		 * @return the text of the line, without the line break
+		 */
+		public String getText()
+		{
+			return _text;
+		}
+
+		/**
+		 * @return the expression, or null if the line could not be parsed
+		 */
+		public Expression getExpression()
+		{
+			return _expression;
+		}
+
+		/**
+		 * @return the reason the line could not be parsed, or null if it was parsed
+		 */
+		public ExpressionParseException getError()
+		{
+			return _error;
+		}
+
+		/**
+		 * @return the offset in bytes in the input of the character at which parsing failed, or -1 if
+		 * the line was parsed or the position of the error is not known
+		 */
+		public long getErrorOffset()
+		{
+			return _error == null || _error.getOffset() < 0 ? -1 : _offset + _error.getOffset();
+		}
+	}
+
+	private final ExpressionParser _parser;
+	private final int _capacity;
+
+	/**
+	 * @param parser the parser for the lines, which is only used by the reader thread
+	 * @param capacity the maximum number of parsed lines that wait for the consumer
+	 */
+	public BulkExpressionParser(ExpressionParser parser, int capacity)
+	{
+		_parser = parser;
+		_capacity = capacity;
+	}
+
+	/**
+	 * Parses every line of a file and hands the results to a consumer, in order, on the calling thread.
+	 * @param path the file
+	 * @param consumer receives every parsed line
+	 * @throws IOException if the file cannot be read, or the calling thread is interrupted
+	 */
+	public void parse(Path path, Consumer<? super ParsedLine> consumer) throws IOException
+	{
+		consume(new Reader(path, null), consumer);
+	}
+
+	/**
+	 * Parses every line of a stream and hands the results to a consumer, in order, on the calling
+	 * thread. The stream is not closed.
+	 * @param input the stream
+	 * @param consumer receives every parsed line
+	 * @throws IOException if the stream cannot be read, or the calling thread is interrupted
+	 */
+	public void parse(InputStream input, Consumer<? super ParsedLine> consumer) throws IOException
+	{
+		consume(new Reader(null, input), consumer);
+	}
+
+	/**
+	 * Returns the parsed lines of a file as a sequential Stream. The file is read as the Stream is
+	 * consumed; close the Stream to stop reading early. Read errors are thrown as UncheckedIOException.
+	 * @param path the file
+	 * @return the parsed lines, in order
+	 */
+	public Stream<ParsedLine> stream(Path path)
+	{
+		return stream(new Reader(path, null));
+	}
+
+	/**
+	 * Returns the parsed lines of a stream as a sequential Stream. The input is read as the Stream is
+	 * consumed; close the Stream to stop reading early. The input is not closed.
+	 * @param input the stream
+	 * @return the parsed lines, in order
+	 */
+	public Stream<ParsedLine> stream(InputStream input)
+	{
+		return stream(new Reader(null, input));
+	}
+
+	private void consume(Reader reader, Consumer<? super ParsedLine> consumer) throws IOException
+	{
+		reader.start();
+		try
+		{
+			for(ParsedLine line = reader.take(); line != END; line = reader.take())
+			{
+				consumer.accept(line);
+			}
+		}
+		finally
+		{
+			reader.stop();
+		}
+	}
+
+	private Stream<ParsedLine> stream(Reader reader)
+	{
+		final Spliterator<ParsedLine> spliterator = new Spliterators.AbstractSpliterator<ParsedLine>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL)
+		{
+			private boolean _started, _ended;
+
+			public boolean tryAdvance(Consumer<? super ParsedLine> action)
+			{
+				if(_ended)
+				{
+					return false;
+				}
+				if(!_started)
+				{
+					_started = true;
+					reader.start();
+				}
+				final ParsedLine line;
+				try
+				{
+					line = reader.take();
+				}
+				catch(IOException e)
+				{
+					_ended = true;
+					throw new UncheckedIOException(e);
+				}
+				if(line == END)
+				{
+					_ended = true;
+					return false;
+				}
+				action.accept(line);
+				return true;
+			}
+		};
+		return StreamSupport.stream(spliterator, false).onClose(reader::stop);
+	}
+
+	/**
+	 * Reads and parses one input on its own thread and puts the results into a bounded queue.
+	 */
+	private class Reader implements Runnable
+	{
+		private final Path _path;
+		private final InputStream _input;
+		private final ArrayBlockingQueue<ParsedLine> _queue = new ArrayBlockingQueue<ParsedLine>(_capacity);
+		private final Thread _thread = new Thread(this, "BulkExpressionParser");
+		private volatile IOException _failure;
+
+		/**
+		 * The bytes of the current line so far, its number and the offset of its start.
+		 */
+		private byte[] _line = new byte[256];
+		private int _lineLength;
+		private long _lineNumber = 1, _lineOffset;
+
+		Reader(Path path, InputStream input)
+		{
+			_path = path;
+			_input = input;
+			_thread.setDaemon(true);
+		}
+
+		void start()
+		{
+			_thread.start();
+		}
+
+		void stop()
+		{
+			_thread.interrupt();
+		}
+
+		/**
+		 * Waits for the next parsed line.
+		 * @return the line, or END after the last one
+		 * @throws IOException if the input could not be read, or the calling thread was interrupted
+		 */
+		ParsedLine take() throws IOException
+		{
+			final ParsedLine line;
+			try
+			{
+				line = _queue.take();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for parsed lines");
+			}
+			if(line == END && _failure != null)
+			{
+				throw _failure;
+			}
+			return line;
+		}
+
+		public void run()
+		{
+			try
+			{
+				if(_path != null && Files.isRegularFile(_path))
+				{
+					readMapped();
+				}
+				else if(_path != null)
+				{
+					try(InputStream input = Files.newInputStream(_path))
+					{
+						read(input);
+					}
+				}
+				else
+				{
+					read(_input);
+				}
+				if(_lineLength > 0)
+				{
+					endLine();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				// The consumer stopped; nobody takes END any more
+				return;
+			}
+			catch(IOException e)
+			{
+				_failure = e;
+			}
+			try
+			{
+				_queue.put(END);
+			}
+			catch(InterruptedException e)
+			{
+				// The consumer stopped
+			}
+		}
+
+		private void readMapped() throws IOException, InterruptedException
+		{
+			try(FileChannel channel = FileChannel.open(_path, StandardOpenOption.READ))
+			{
+				final long size = channel.size();
+				for(long position = 0; position < size; position += SEGMENT_SIZE)
+				{
+					accept(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position)));
+				}
+			}
+		}
+
+		private void read(InputStream input) throws IOException, InterruptedException
+		{
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			for(int length = input.read(buffer); length >= 0; length = input.read(buffer))
+			{
+				if(Thread.interrupted())
+				{
+					throw new InterruptedException();
+				}
+				accept(ByteBuffer.wrap(buffer, 0, length));
+			}
+		}
+
+		/**
+		 * Splits a chunk of the input into lines; the last line may continue in the next chunk.
+		 */
+		private void accept(ByteBuffer chunk) throws InterruptedException
+		{
+			final int limit = chunk.limit();
+			int start = chunk.position();
+			for(int i = start; i < limit; i++)
+			{
+				if(chunk.get(i) == '\n')
+				{
+					append(chunk, start, i);
+					endLine();
+					start = i + 1;
+				}
+			}
+			append(chunk, start, limit);
+			chunk.position(limit);
+		}
+
+		private void append(ByteBuffer chunk, int start, int end)
+		{
+			final int length = end - start;
+			if(_lineLength + length > _line.length)
+			{
+				final byte[] line = new byte[Math.max(2 * _line.length, _lineLength + length)];
+				System.arraycopy(_line, 0, line, 0, _lineLength);
+				_line = line;
+			}
+			chunk.get(start, _line, _lineLength, length);
+			_lineLength += length;
+		}
+
+		/**
+		 * Parses the current line, unless it is blank, and waits for room in the queue for the result.
+		 */
+		private void endLine() throws InterruptedException
+		{
+			final int length = _lineLength > 0 && _line[_lineLength - 1] == '\r' ? _lineLength - 1 : _lineLength;
+			boolean blank = true;
+			for(int i = 0; i < length && blank; i++)
+			{
+				blank = _line[i] == ' ';
+			}
+			if(!blank)
+			{
+				// Every byte becomes one char, so offsets in the text are offsets in the line
+				final String text = new String(_line, 0, length, StandardCharsets.ISO_8859_1);
+				ParsedLine parsedLine;
+				try
+				{
+					parsedLine = new ParsedLine(_lineNumber, _lineOffset, text, _parser.parse(text, 0, length), null);
+				}
+				catch(ExpressionParseException e)
+				{
+					parsedLine = new ParsedLine(_lineNumber, _lineOffset, text, null, e);
+				}
+				_queue.put(parsedLine);
+			}
+			_lineOffset += _lineLength + 1;
+			_lineNumber++;
+			_lineLength = 0;
+			// Lines are usually short; do not keep the buffer of a very long one
+			if(_line.length > BUFFER_SIZE)
+			{
+				_line = new byte[256];
+			}
+		}
+	}
+}
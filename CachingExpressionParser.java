@@ -0,0 +1,157 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An ExpressionParser that remembers the trees of the most recently parsed expressions and hands out
+ * deep copies of them, so an expression string that is parsed again and again is only parsed once.
+ * Strings that differ only in spaces share one entry. When the cache holds its maximum number of
+ * entries, the least recently used one is evicted.
+ *
+ * Lookups do not lock. The recency order is kept under a lock, but that lock is only ever tried:
+ * a caller that finds it taken skips the bookkeeping (or leaves its result uncached) instead of
+ * waiting, so a parse never waits for other callers.
+ */
+public class CachingExpressionParser implements ExpressionParser {
+	private final ExpressionParser _parser;
+	private final int _maxEntries;
+	private final ConcurrentHashMap<String, Expression> _entries = new ConcurrentHashMap<String, Expression>();
+	private final LinkedHashMap<String, Boolean> _recency = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+	private final ReentrantLock _recencyLock = new ReentrantLock();
+	private final LongAdder _hits = new LongAdder(), _misses = new LongAdder(), _evictions = new LongAdder();
+
+	/**
+	 * @param parser the parser used for expressions that are not in the cache
+	 * @param maxEntries the maximum number of expression trees kept in the cache
+	 */
+	public CachingExpressionParser (ExpressionParser parser, int maxEntries) {
+		_parser = parser;
+		_maxEntries = maxEntries;
+	}
+
+	/**
+	 * Attempts to create an expression tree -- flattened as much as possible -- from the specified String.
+	 * Throws a ExpressionParseException if the specified string cannot be parsed.
+	 * @param str the string to parse into an expression tree
+	 * @param withJavaFXControls whether to create JavaFX GUI objects for the expression tree
+	 * @return a copy of the cached expression tree that the caller may change freely
+	 */
+	public Expression parse (String str, boolean withJavaFXControls) throws ExpressionParseException {
+		final Expression expression = parseCached(str, 0, str.length());
+		if (withJavaFXControls) {
+			((ExpressionNode) expression).getNode();
+		}
+		return expression;
+	}
+
+	/**
+	 * Attempts to create an expression tree -- flattened as much as possible -- from the characters
+	 * between start and end of the specified input, without JavaFX controls.
+	 * @param input the characters to parse
+	 * @param start the index of the first character to parse
+	 * @param end the index after the last character to parse
+	 * @return a copy of the cached expression tree that the caller may change freely
+	 */
+	public Expression parse (CharSequence input, int start, int end) throws ExpressionParseException {
+		return parseCached(input, start, end);
+	}
+
+	/**
+	 * Looks the expression up in the cache by its characters without spaces, parsing and adding it if it
+	 * is not there. The input itself is parsed, so the offset of an ExpressionParseException is the one
+	 * the underlying parser reports for the input.
+	 * @param input the characters of the expression
+	 * @param start the index of the first character
+	 * @param end the index after the last character
+	 * @return a deep copy of the cached tree
+	 */
+	private Expression parseCached (CharSequence input, int start, int end) throws ExpressionParseException {
+		final String key = removeSpaces(input, start, end);
+		Expression cached = _entries.get(key);
+		if (cached != null) {
+			_hits.increment();
+			if (_recencyLock.tryLock()) {
+				try {
+					_recency.get(key);
+				} finally {
+					_recencyLock.unlock();
+				}
+			}
+			return cached.deepCopy();
+		}
+		_misses.increment();
+		// The cached tree is never handed out, so it never gets JavaFX controls and is never changed
+		cached = _parser.parse(input, start, end);
+		if (_recencyLock.tryLock()) {
+			try {
+				if (_entries.putIfAbsent(key, cached) == null) {
+					_recency.put(key, Boolean.TRUE);
+					evict();
+				}
+			} finally {
+				_recencyLock.unlock();
+			}
+		}
+		return cached.deepCopy();
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache is no larger than its maximum.
+	 * Must be called with the recency lock held.
+	 */
+	private void evict () {
+		final Iterator<String> iterator = _recency.keySet().iterator();
+		while (_recency.size() > _maxEntries && iterator.hasNext()) {
+			_entries.remove(iterator.next());
+			iterator.remove();
+			_evictions.increment();
+		}
+	}
+
+	/**
+	 * Normalizes an expression the same way the parser does, by removing every space.
+	 * @param input the characters of the expression
+	 * @param start the index of the first character
+	 * @param end the index after the last character
+	 * @return the characters between start and end without spaces
+	 */
+	private static String removeSpaces (CharSequence input, int start, int end) {
+		final StringBuilder stringBuilder = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			if (input.charAt(i) != ' ') {
+				stringBuilder.append(input.charAt(i));
+			}
+		}
+		return stringBuilder.toString();
+	}
+
+	/**
+	 * @return the number of parses answered from the cache
+	 */
+	public long getHitCount () {
+		return _hits.sum();
+	}
+
+	/**
+	 * @return the number of parses that had to be passed on to the underlying parser
+	 */
+	public long getMissCount () {
+		return _misses.sum();
+	}
+
+	/**
+	 * @return the number of entries evicted to keep the cache within its maximum size
+	 */
+	public long getEvictionCount () {
+		return _evictions.sum();
+	}
+
+	/**
+	 * @return the number of expression trees in the cache
+	 */
+	public int size () {
+		return _entries.size();
+	}
+}
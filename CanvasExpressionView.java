@@ -0,0 +1,163 @@
+import javafx.geometry.VPos;
+import javafx.scene.Node;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.paint.Paint;
+
+/**
+ * Shows an expression by drawing it on a single Canvas instead of with a node per expression. The
+ * text of every token, the focus border and the dragged copy are drawn from an ExpressionLayout, and
+ * only the tokens that are visible are drawn. The canvas is as large as the view, not as the
+ * expression; scrolling (or panning with a trackpad) moves the line.
+ */
+
+public class CanvasExpressionView extends Region implements ExpressionLayoutView
+{
+	/**
+	 * Color and width of the focus border, taken from ExpressionNodeView.RED_BORDER.
+	 */
+	private static final Paint FOCUS_COLOR = ExpressionNodeView.RED_BORDER.getStrokes().get(0).getTopStroke();
+	private static final double FOCUS_WIDTH = ExpressionNodeView.RED_BORDER.getStrokes().get(0).getWidths().getTop();
+
+	private final ExpressionLayout _layout;
+	private final double _originX, _originY;
+	private final Canvas _canvas = new Canvas();
+	private double _scrollX;
+	private ExpressionNode _focus, _ghost;
+	private double _ghostTranslateX, _ghostTranslateY;
+
+	/**
+	 * @param layout the layout of the expression to show
+	 * @param originX the x-coordinate in the view where the line starts when the view is not scrolled
+	 * @param originY the y-coordinate in the view of the top of the line
+	 */
+	public CanvasExpressionView(ExpressionLayout layout, double originX, double originY)
+	{
+		_layout = layout;
+		_originX = originX;
+		_originY = originY;
+		getChildren().add(_canvas);
+		setOnScroll(event -> setScrollX(_scrollX - event.getDeltaX() - event.getDeltaY()));
+	}
+
+	public ExpressionLayout getExpressionLayout()
+	{
+		return _layout;
+	}
+
+	public Node getNode()
+	{
+		return this;
+	}
+
+	public double toLayoutX(double x)
+	{
+		return x - _originX + _scrollX;
+	}
+
+	public double toLayoutY(double y)
+	{
+		return y - _originY;
+	}
+
+	/**
+	 * Scrolls the line, as far as there is anything to scroll to.
+	 * @param scrollX the distance to scroll the line to the left
+	 */
+	public void setScrollX(double scrollX)
+	{
+		_scrollX = Math.max(0, Math.min(scrollX, _layout.getWidth() + 2 * _originX - getWidth()));
+		draw();
+	}
+
+	public void setFocus(ExpressionNode expression)
+	{
+		_focus = expression;
+		draw();
+	}
+
+	public void setGhost(ExpressionNode expression, double translateX, double translateY)
+	{
+		_ghost = expression;
+		_ghostTranslateX = translateX;
+		_ghostTranslateY = translateY;
+		draw();
+	}
+
+	public void refresh(ExpressionNode expression)
+	{
+		_layout.update(expression);
+		draw();
+	}
+
+	/**
+	 * The view holds no pooled controls; it only stops showing anything.
+	 */
+	public void release()
+	{
+		_focus = _ghost = null;
+		_canvas.getGraphicsContext2D().clearRect(0, 0, _canvas.getWidth(), _canvas.getHeight());
+	}
+
+	protected double computePrefWidth(double height)
+	{
+		return _layout.getWidth() + 2 * _originX;
+	}
+
+	protected double computePrefHeight(double width)
+	{
+		return _originY + 2 * _layout.getHeight();
+	}
+
+	protected void layoutChildren()
+	{
+		if(_canvas.getWidth() != getWidth() || _canvas.getHeight() != getHeight())
+		{
+			_canvas.setWidth(getWidth());
+			_canvas.setHeight(getHeight());
+			draw();
+		}
+	}
+
+	/**
+	 * Draws the visible tokens, the focus border and the dragged copy.
+	 */
+	private void draw()
+	{
+		final GraphicsContext graphics = _canvas.getGraphicsContext2D();
+		graphics.clearRect(0, 0, _canvas.getWidth(), _canvas.getHeight());
+		graphics.setFont(_layout.getMetrics().getFont());
+		graphics.setTextBaseline(VPos.TOP);
+		final int ghostStart = _ghost == null ? 0 : _layout.getFirstToken(_ghost);
+		final int ghostEnd = _ghost == null ? 0 : _layout.getEndToken(_ghost);
+		drawTokens(graphics, 0, _layout.getNumberOfTokens(), 0, 0, ghostStart, ghostEnd);
+		if(_focus != null && _focus != _layout.getRoot())
+		{
+			double startX = _layout.getStartX(_focus);
+			graphics.setStroke(FOCUS_COLOR);
+			graphics.setLineWidth(FOCUS_WIDTH);
+			graphics.strokeRect(_originX - _scrollX + startX + FOCUS_WIDTH / 2, _originY + FOCUS_WIDTH / 2,
+					_layout.getEndX(_focus) - startX - FOCUS_WIDTH, _layout.getHeight() - FOCUS_WIDTH);
+		}
+		if(_ghost != null)
+		{
+			drawTokens(graphics, ghostStart, ghostEnd, _ghostTranslateX, _ghostTranslateY, 0, 0);
+		}
+	}
+
+	/**
+	 * Draws the visible tokens in a range, moved by a distance; tokens in the ghost range are drawn in
+	 * ExpressionNodeView.GHOST_COLOR and all others in black.
+	 */
+	private void drawTokens(GraphicsContext graphics, int startToken, int endToken, double translateX, double translateY, int ghostStart, int ghostEnd)
+	{
+		final double windowStart = toLayoutX(-translateX), windowEnd = toLayoutX(getWidth() - translateX);
+		for(int token = Math.max(startToken, _layout.findToken(windowStart)); token < endToken && _layout.getTokenX(token) <= windowEnd; token++)
+		{
+			graphics.setFill(token >= ghostStart && token < ghostEnd ? ExpressionNodeView.GHOST_COLOR : Color.BLACK);
+			graphics.fillText(_layout.getTokenText(token), _originX - _scrollX + _layout.getTokenX(token) + translateX, _originY + translateY);
+		}
+	}
+}
@@ -0,0 +1,406 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * An expression tree stored as columns of primitives instead of ExpressionNode objects: for every node
+ * its kind, the span of its literal in a shared character column, the index of its first child and the
+ * index of its next sibling. A node costs 17 bytes plus the characters of its literal, and a whole tree
+ * is a handful of buffers, which can live on the Java heap or off-heap in direct ByteBuffers.
+ * Node 0 is the root; -1 stands for "no node". Kinds are the ones of SharedExpression.
+ */
+
+public class CompactExpressionTree
+{
+	private static final int NONE = -1;
+
+	private final ByteBuffer _kinds;
+	private final IntBuffer _literalStarts, _literalLengths, _firstChildren, _nextSiblings;
+	private final CharBuffer _characters;
+	private final boolean _offHeap;
+
+	/**
+	 * Allocates the columns for a tree.
+	 * @param numberOfNodes the number of nodes
+	 * @param numberOfCharacters the total number of characters of all literals
+	 * @param offHeap whether to allocate the columns in direct ByteBuffers
+	 */
+	private CompactExpressionTree(int numberOfNodes, int numberOfCharacters, boolean offHeap)
+	{
+		_offHeap = offHeap;
+		_kinds = offHeap ? ByteBuffer.allocateDirect(numberOfNodes) : ByteBuffer.allocate(numberOfNodes);
+		_literalStarts = allocateInts(numberOfNodes, offHeap);
+		_literalLengths = allocateInts(numberOfNodes, offHeap);
+		_firstChildren = allocateInts(numberOfNodes, offHeap);
+		_nextSiblings = allocateInts(numberOfNodes, offHeap);
+		_characters = offHeap ? ByteBuffer.allocateDirect(2 * numberOfCharacters).order(ByteOrder.nativeOrder()).asCharBuffer() : CharBuffer.allocate(numberOfCharacters);
+	}
+
+	private static IntBuffer allocateInts(int size, boolean offHeap)
+	{
+		return offHeap ? ByteBuffer.allocateDirect(4 * size).order(ByteOrder.nativeOrder()).asIntBuffer() : IntBuffer.allocate(size);
+	}
+
+	/**
+	 * Creates the compact form of an expression tree. The nodes are numbered breadth-first, so the
+	 * children of a node are numbered after the node itself.
+	 * @param expression the root of the tree
+	 * @param offHeap whether to store the tree in direct ByteBuffers
+	 * @return the compact tree
+	 */
+	public static CompactExpressionTree of(Expression expression, boolean offHeap)
+	{
+		// First pass: count the nodes and the characters of the literals
+		final ArrayDeque<ExpressionNode> queue = new ArrayDeque<ExpressionNode>();
+		int numberOfNodes = 0, numberOfCharacters = 0;
+		queue.add((ExpressionNode)expression);
+		while(!queue.isEmpty())
+		{
+			ExpressionNode node = queue.poll();
+			numberOfNodes++;
+			if(node instanceof LiteralExpression)
+			{
+				numberOfCharacters += ((LiteralExpression)node).getEnd() - ((LiteralExpression)node).getStart();
+			}
+			queue.addAll(node.getChildren());
+		}
+
+		// Second pass: fill the columns
+		final CompactExpressionTree tree = new CompactExpressionTree(numberOfNodes, numberOfCharacters, offHeap);
+		int nextIndex = 1, numberOfCharactersUsed = 0;
+		queue.add((ExpressionNode)expression);
+		for(int index = 0; !queue.isEmpty(); index++)
+		{
+			ExpressionNode node = queue.poll();
+			int kind = SharedExpression.kindOf(node);
+			tree._kinds.put(index, (byte)kind);
+			tree._literalStarts.put(index, numberOfCharactersUsed);
+			if(kind == SharedExpression.LITERAL)
+			{
+				LiteralExpression literal = (LiteralExpression)node;
+				for(int i = literal.getStart(); i < literal.getEnd(); i++)
+				{
+					// Spaces inside the literal's span are not part of its text
+					if(literal.getSource().charAt(i) != ' ')
+					{
+						tree._characters.put(numberOfCharactersUsed++, literal.getSource().charAt(i));
+					}
+				}
+			}
+			tree._literalLengths.put(index, numberOfCharactersUsed - tree._literalStarts.get(index));
+			int numberOfChildren = node.getChildren().size();
+			tree._firstChildren.put(index, numberOfChildren == 0 ? NONE : nextIndex);
+			for(int i = 0; i < numberOfChildren; i++)
+			{
+				tree._nextSiblings.put(nextIndex + i, i == numberOfChildren - 1 ? NONE : nextIndex + i + 1);
+			}
+			nextIndex += numberOfChildren;
+			queue.addAll(node.getChildren());
+		}
+		tree._nextSiblings.put(0, NONE);
+		return tree;
+	}
+
+	public int getKind(int node)
+	{
+		return _kinds.get(node);
+	}
+
+	public int getFirstChild(int node)
+	{
+		return _firstChildren.get(node);
+	}
+
+	public int getNextSibling(int node)
+	{
+		return _nextSiblings.get(node);
+	}
+
+	/**
+	 * @return true if the columns of this tree are stored off-heap
+	 */
+	public boolean isOffHeap()
+	{
+		return _offHeap;
+	}
+
+	/**
+	 * @return the number of node slots, including slots of nodes removed by flatten()
+	 */
+	public int getCapacity()
+	{
+		return _kinds.capacity();
+	}
+
+	/**
+	 * Appends the data of a node (the literal, "+", "*" or "()") to a StringBuilder, without creating a String.
+	 * @param stringBuilder the StringBuilder to append to
+	 * @param node the index of the node
+	 */
+	public void appendData(StringBuilder stringBuilder, int node)
+	{
+		switch(_kinds.get(node))
+		{
+			case SharedExpression.ADDITIVE:
+				stringBuilder.append('+');
+				break;
+			case SharedExpression.MULTIPLICATIVE:
+				stringBuilder.append('*');
+				break;
+			case SharedExpression.PARENTHETICAL:
+				stringBuilder.append("()");
+				break;
+			default:
+				int start = _literalStarts.get(node);
+				stringBuilder.append(_characters, start, start + _literalLengths.get(node));
+		}
+	}
+
+	/**
+	 * Flattens the tree in place, like Expression.flatten(): every additive or multiplicative child of a
+	 * node of the same kind is replaced by its own children. Because children are numbered after their
+	 * parents, going through the nodes from the highest index down flattens every child before its
+	 * parent, and each merge only relinks sibling indices. Merged nodes are left behind unused.
+	 */
+	public void flatten()
+	{
+		for(int node = getCapacity() - 1; node >= 0; node--)
+		{
+			int kind = _kinds.get(node);
+			if(kind != SharedExpression.ADDITIVE && kind != SharedExpression.MULTIPLICATIVE)
+			{
+				continue;
+			}
+			int previous = NONE;
+			int child = _firstChildren.get(node);
+			while(child != NONE)
+			{
+				int next = _nextSiblings.get(child);
+				int grandchild = _firstChildren.get(child);
+				if(_kinds.get(child) == kind && grandchild != NONE)
+				{
+					// Link the grandchildren in where the child was
+					if(previous == NONE)
+					{
+						_firstChildren.put(node, grandchild);
+					}
+					else
+					{
+						_nextSiblings.put(previous, grandchild);
+					}
+					previous = grandchild;
+					while(_nextSiblings.get(previous) != NONE)
+					{
+						previous = _nextSiblings.get(previous);
+					}
+					_nextSiblings.put(previous, next);
+				}
+				else
+				{
+					previous = child;
+				}
+				child = next;
+			}
+		}
+	}
+
+	/**
+	 * Creates a String representation of the tree in the same format as Expression.convertToString.
+	 * @param stringBuilder the StringBuilder to append to
+	 * @param indentLevel the indentation level of the root
+	 */
+	public void convertToString(StringBuilder stringBuilder, int indentLevel)
+	{
+		// Each entry is a node still to be printed and its indentation level; a node's first child is
+		// pushed after its next sibling, so the whole subtree is printed before the sibling
+		final IntStack stack = new IntStack();
+		stack.push(0);
+		stack.push(indentLevel);
+		while(!stack.isEmpty())
+		{
+			int level = stack.pop();
+			int node = stack.pop();
+			Expression.indent(stringBuilder, level);
+			appendData(stringBuilder, node);
+			stringBuilder.append('\n');
+			if(_nextSiblings.get(node) != NONE)
+			{
+				stack.push(_nextSiblings.get(node));
+				stack.push(level);
+			}
+			if(_firstChildren.get(node) != NONE)
+			{
+				stack.push(_firstChildren.get(node));
+				stack.push(level + 1);
+			}
+		}
+	}
+
+	public String convertToString(int indentLevel)
+	{
+		final StringBuilder stringBuilder = new StringBuilder();
+		convertToString(stringBuilder, indentLevel);
+		return stringBuilder.toString();
+	}
+
+	/**
+	 * Creates a copy of the tree that only holds the nodes still in use, in the same kind of storage.
+	 * @return the copy
+	 */
+	public CompactExpressionTree deepCopy()
+	{
+		// First pass: count the nodes and characters that are still in use
+		final IntStack stack = new IntStack();
+		int numberOfNodes = 0, numberOfCharacters = 0;
+		stack.push(0);
+		while(!stack.isEmpty())
+		{
+			int node = stack.pop();
+			numberOfNodes++;
+			numberOfCharacters += _literalLengths.get(node);
+			for(int child = _firstChildren.get(node); child != NONE; child = _nextSiblings.get(child))
+			{
+				stack.push(child);
+			}
+		}
+
+		// Second pass: copy them breadth-first, like of() does
+		final CompactExpressionTree copy = new CompactExpressionTree(numberOfNodes, numberOfCharacters, _offHeap);
+		final IntQueue queue = new IntQueue(numberOfNodes);
+		int nextIndex = 1, numberOfCharactersUsed = 0;
+		queue.add(0);
+		for(int index = 0; !queue.isEmpty(); index++)
+		{
+			int node = queue.poll();
+			int start = _literalStarts.get(node);
+			int length = _literalLengths.get(node);
+			copy._kinds.put(index, _kinds.get(node));
+			copy._literalStarts.put(index, numberOfCharactersUsed);
+			copy._literalLengths.put(index, length);
+			for(int i = 0; i < length; i++)
+			{
+				copy._characters.put(numberOfCharactersUsed++, _characters.get(start + i));
+			}
+			copy._firstChildren.put(index, _firstChildren.get(node) == NONE ? NONE : nextIndex);
+			for(int child = _firstChildren.get(node); child != NONE; child = _nextSiblings.get(child))
+			{
+				copy._nextSiblings.put(nextIndex, _nextSiblings.get(child) == NONE ? NONE : nextIndex + 1);
+				nextIndex++;
+				queue.add(child);
+			}
+		}
+		copy._nextSiblings.put(0, NONE);
+		return copy;
+	}
+
+	/**
+	 * Creates a mutable ExpressionNode tree with the same structure, e.g. to show it in the editor.
+	 * @return the root of the new tree
+	 */
+	public Expression toExpression()
+	{
+		final ArrayDeque<Expression> parents = new ArrayDeque<Expression>();
+		final IntStack stack = new IntStack();
+		final Expression root = createExpressionNode(0);
+		parents.push(root);
+		stack.push(_firstChildren.get(0));
+		while(!stack.isEmpty())
+		{
+			int node = stack.pop();
+			if(node == NONE)
+			{
+				// All children of the parent on top have been added
+				parents.pop();
+				continue;
+			}
+			CompoundExpression parent = (CompoundExpression)parents.peek();
+			Expression expression = createExpressionNode(node);
+			parent.addSubexpression(expression);
+			expression.setParent(parent);
+			stack.push(_nextSiblings.get(node));
+			parents.push(expression);
+			stack.push(_firstChildren.get(node));
+		}
+		return root;
+	}
+
+	/**
+	 * @param node the index of a node
+	 * @return a childless ExpressionNode of the same kind and with the same data as the node
+	 */
+	private Expression createExpressionNode(int node)
+	{
+		switch(_kinds.get(node))
+		{
+			case SharedExpression.ADDITIVE:
+				return new AdditiveExpression("+");
+			case SharedExpression.MULTIPLICATIVE:
+				return new MultiplicativeExpression("*");
+			case SharedExpression.PARENTHETICAL:
+				return new ParentheticalExpression("()");
+			default:
+				int start = _literalStarts.get(node);
+				return new LiteralExpression(_characters, start, start + _literalLengths.get(node));
+		}
+	}
+
+	/**
+	 * A growable stack of ints.
+	 */
+	private static class IntStack
+	{
+		private int[] _values = new int[32];
+		private int _size;
+
+		void push(int value)
+		{
+			if(_size == _values.length)
+			{
+				_values = Arrays.copyOf(_values, 2 * _size);
+			}
+			_values[_size++] = value;
+		}
+
+		int pop()
+		{
+			return _values[--_size];
+		}
+
+		boolean isEmpty()
+		{
+			return _size == 0;
+		}
+	}
+
+	/**
+	 * A fixed-capacity queue of ints.
+	 */
+	private static class IntQueue
+	{
+		private final int[] _values;
+		private int _head, _tail;
+
+		IntQueue(int capacity)
+		{
+			_values = new int[capacity];
+		}
+
+		void add(int value)
+		{
+			_values[_tail++] = value;
+		}
+
+		int poll()
+		{
+			return _values[_head++];
+		}
+
+		boolean isEmpty()
+		{
+			return _head == _tail;
+		}
+	}
+}
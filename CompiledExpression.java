@@ -0,0 +1,12 @@
+/**
+ * An expression compiled by the ExpressionCompiler, ready to be evaluated for many different values of its variables.
+ */
+public interface CompiledExpression
+{
+	/**
+	 * Evaluates the expression.
+	 * @param variables the values of the variables: a in variables[0], b in variables[1], ..., z in variables[25]
+	 * @return the value of the expression
+	 */
+	double evaluate(double[] variables);
+}
@@ -1,6 +1,4 @@
-import java.util.LinkedList;
-
-import javafx.scene.control.Label;
+import java.util.List;
 
 /**
  * An abstract "helper" class for the operator classes to reduce the redundancy for similar methods.
@@ -20,16 +18,25 @@ public class CompoundExpressionNode extends ExpressionNode implements CompoundEx
 	
 	public void addSubexpression(Expression expression)
 	{
-		getChildren().add((ExpressionNode)expression);
+		addChild((ExpressionNode)expression);
+		if(hasView())
+		{
+			getView().rebuild();
+		}
 	}
 
 	/**
 	 * Gets the list of expressions
-	 * @return the list of expressions
+	 * @return the read-only list of expressions
 	 */
 	
-	public LinkedList<ExpressionNode> getSubexpressions()
+	public List<ExpressionNode> getSubexpressions()
 	{
 		return getChildren();
 	}
+
+	protected ExpressionNode createEmptyCopy()
+	{
+		return new CompoundExpressionNode(getData());
+	}
 }
\ No newline at end of file
@@ -1,25 +1,4 @@
-import javafx.scene.layout.*;
-import javafx.scene.paint.Color;
-import javafx.scene.Node;
-
 interface Expression {
-	/**
-	 * Border for showing a focused expression
-	 */
-	public static final Border RED_BORDER = new Border(
-	  new BorderStroke(Color.RED, BorderStrokeStyle.SOLID, CornerRadii.EMPTY, BorderWidths.DEFAULT)
-	);
-
-	/**
-	 * Border for showing a non-focused expression
-	 */
-	public static final Border NO_BORDER = null;
-
-	/**
-	 * Color used for a "ghosted" expression
-	 */
-	public static final Color GHOST_COLOR = Color.LIGHTGREY;
-
 	/**
 	 * Returns the expression's parent.
 	 * @return the expression's parent
@@ -41,12 +20,6 @@ interface Expression {
 	Expression deepCopy ();
 
 
-	/**
-	 * Returns the JavaFX node associated with this expression.
-	 * @return the JavaFX node associated with this expression.
-	 */
-	Node getNode ();
-
 	/**
 	 * Recursively flattens the expression as much as possible
 	 * throughout the entire tree. Specifically, in every multiplicative
@@ -56,6 +29,33 @@ interface Expression {
 	 */
 	void flatten ();
 
+	/**
+	 * Returns a simplified copy of the expression: numbers are folded, like terms
+	 * are collected, redundant parentheses are removed and the operands of + and *
+	 * are sorted into a canonical order (see ExpressionSimplifier). Unlike flatten,
+	 * this method does not modify the expression itself.
+	 * @return the simplified expression
+	 */
+	public default Expression simplify () {
+		return new ExpressionSimplifier().simplify(this);
+	}
+
+	/**
+	 * Returns a hash code that does not depend on the order of the operands of
+	 * + and *, so that a+b*c and c*b+a have the same one. Like hashCode, which is
+	 * structural, it is cached and computed again after the tree changes.
+	 * @return the commutative hash code
+	 */
+	int commutativeHashCode ();
+
+	/**
+	 * Returns whether the specified expression equals this one when the operands
+	 * of + and * may be in any order (equals compares them in order).
+	 * @param expression the expression to compare with
+	 * @return true if both expressions are equal under commutativity
+	 */
+	boolean equalsIgnoringOrder (Expression expression);
+
 	/**
 	 * Creates a String representation by recursively printing out (using indentation) the
 	 * tree represented by this expression, starting at the specified indentation level.
@@ -0,0 +1,202 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A file of expression trees in the binary encoding of ExpressionCodec, read through a memory
+ * mapping. The file is laid out as
+ *
+ *   int     MAGIC
+ *   int     ExpressionCodec.FORMAT_VERSION
+ *           the encoded trees, one after the other
+ *   long    per tree: the file offset of its encoding (the index)
+ *   long    the file offset of the index
+ *   int     the number of trees
+ *   int     MAGIC
+ *
+ * Opening an archive only reads the header and the trailer. get(i) reads the offset of tree i from
+ * the mapped index and decodes just that tree, so a program can start using a file of millions of
+ * trees right away instead of parsing all of their text.
+ */
+public class ExpressionArchive implements Closeable
+{
+	/**
+	 * "EXPR" in ASCII.
+	 */
+	public static final int MAGIC = 0x45585052;
+
+	/**
+	 * Size of the parts the file is mapped in; a MappedByteBuffer cannot be larger than 2 GB.
+	 */
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	private static final int HEADER_SIZE = 8, TRAILER_SIZE = 16;
+
+	private final FileChannel _channel;
+	private final long _indexOffset;
+	private final int _numberOfTrees;
+	private final MappedByteBuffer[] _segments;
+
+	private ExpressionArchive(FileChannel channel) throws IOException
+	{
+		_channel = channel;
+		final long size = channel.size();
+		_segments = new MappedByteBuffer[(int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+		if(size < HEADER_SIZE + TRAILER_SIZE)
+		{
+			throw new IOException("Not an expression archive: only " + size + " bytes");
+		}
+		final ByteBuffer header = region(0, HEADER_SIZE);
+		final ByteBuffer trailer = region(size - TRAILER_SIZE, TRAILER_SIZE);
+		if(header.getInt() != MAGIC || trailer.getInt(12) != MAGIC)
+		{
+			throw new IOException("Not an expression archive");
+		}
+		final int version = header.getInt();
+		if(version != ExpressionCodec.FORMAT_VERSION)
+		{
+			throw new IOException("Unsupported expression archive version " + version);
+		}
+		_indexOffset = trailer.getLong(0);
+		_numberOfTrees = trailer.getInt(8);
+		if(_numberOfTrees < 0 || _indexOffset < HEADER_SIZE || _indexOffset + 8L * _numberOfTrees != size - TRAILER_SIZE)
+		{
+			throw new IOException("Corrupt expression archive trailer");
+		}
+	}
+
+	/**
+	 * Opens an archive for reading.
+	 * @param path the file
+	 * @return the archive
+	 * @throws IOException if the file cannot be read or is not an archive of a supported version
+	 */
+	public static ExpressionArchive open(Path path) throws IOException
+	{
+		final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try
+		{
+			return new ExpressionArchive(channel);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes an archive, replacing the file if it exists.
+	 * @param path the file
+	 * @param expressions the trees to write, in order
+	 * @return the number of trees written
+	 * @throws IOException if the file cannot be written
+	 */
+	public static int write(Path path, Iterable<? extends Expression> expressions) throws IOException
+	{
+		// The offsets are kept until the end, 8 bytes per tree
+		long[] offsets = new long[1024];
+		int numberOfTrees = 0;
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(ExpressionCodec.FORMAT_VERSION);
+			long offset = HEADER_SIZE;
+			for(Expression expression : expressions)
+			{
+				if(numberOfTrees == offsets.length)
+				{
+					offsets = Arrays.copyOf(offsets, 2 * numberOfTrees);
+				}
+				offsets[numberOfTrees++] = offset;
+				offset += ExpressionCodec.encode(expression, out);
+			}
+			for(int i = 0; i < numberOfTrees; i++)
+			{
+				out.writeLong(offsets[i]);
+			}
+			out.writeLong(offset);
+			out.writeInt(numberOfTrees);
+			out.writeInt(MAGIC);
+		}
+		return numberOfTrees;
+	}
+
+	/**
+	 * @return the number of trees in the archive
+	 */
+	public int size()
+	{
+		return _numberOfTrees;
+	}
+
+	/**
+	 * Decodes one tree of the archive. Every call creates a new tree without JavaFX controls.
+	 * @param index the index of the tree, from 0
+	 * @return the root of the tree
+	 * @throws IOException if the file cannot be read
+	 * @throws IllegalArgumentException if the encoding of the tree is corrupt
+	 */
+	public Expression get(int index) throws IOException
+	{
+		if(index < 0 || index >= _numberOfTrees)
+		{
+			throw new IndexOutOfBoundsException("Tree " + index + " of " + _numberOfTrees);
+		}
+		final ByteBuffer offsets = region(_indexOffset + 8L * index, index + 1 < _numberOfTrees ? 16 : 8);
+		final long start = offsets.getLong(0);
+		final long end = index + 1 < _numberOfTrees ? offsets.getLong(8) : _indexOffset;
+		if(start < HEADER_SIZE || end < start || end > _indexOffset || end - start > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Corrupt index entry for tree " + index);
+		}
+		return ExpressionCodec.decode(region(start, (int)(end - start)));
+	}
+
+	/**
+	 * Returns a buffer over a part of the file. Parts that lie within one segment share its mapping;
+	 * the rare part that crosses a segment boundary gets its own mapping.
+	 * @param start the file offset of the part
+	 * @param length the length of the part
+	 * @return a buffer whose position is 0 and whose limit is length
+	 */
+	private ByteBuffer region(long start, int length) throws IOException
+	{
+		final int segment = (int)(start / SEGMENT_SIZE);
+		if(segment == (start + length - 1) / SEGMENT_SIZE)
+		{
+			MappedByteBuffer mapped;
+			synchronized(_segments)
+			{
+				mapped = _segments[segment];
+				if(mapped == null)
+				{
+					long segmentStart = segment * SEGMENT_SIZE;
+					mapped = _channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, Math.min(SEGMENT_SIZE, _channel.size() - segmentStart));
+					_segments[segment] = mapped;
+				}
+			}
+			final ByteBuffer buffer = mapped.duplicate();
+			final int position = (int)(start - segment * SEGMENT_SIZE);
+			buffer.limit(position + length).position(position);
+			return buffer.slice();
+		}
+		return _channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+	}
+
+	/**
+	 * Closes the file. The mappings are released once they are no longer reachable.
+	 */
+	public void close() throws IOException
+	{
+		_channel.close();
+	}
+}
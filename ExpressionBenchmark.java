@@ -0,0 +1,234 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javafx.application.Platform;
+
+/**
+ * Benchmarks the hot paths of the expression model: SimpleExpressionParser.parse, flatten, deepCopy
+ * and convertToString, on random expressions from RandomExpressionGenerator. Every benchmark runs
+ * headless and, with --javafx, once more with JavaFX controls (parse(str, true), and getNode() on the
+ * trees that are flattened and copied). For every benchmark it prints the time per operation (mean and
+ * standard deviation over the measured iterations) and the bytes allocated per operation.
+ *
+ * Usage: java ExpressionBenchmark [--seed=42] [--width=6] [--depth=3] [--parens=0.3]
+ *        [--expressions=200] [--warmup=5] [--iterations=10] [--time=500] [--javafx]
+ * where --time is the length of every iteration in milliseconds.
+ */
+public class ExpressionBenchmark
+{
+	private final String[] _expressionStrs;
+	private final Expression[] _trees, _unflattenedTrees;
+	private final int _warmupIterations, _iterations;
+	private final long _iterationNanos;
+	private final com.sun.management.ThreadMXBean _threadMXBean;
+	private final long _threadId = Thread.currentThread().getId();
+
+	/**
+	 * Results are folded into this field so that the JIT cannot drop the benchmarked work.
+	 */
+	private static volatile int _sink;
+
+	/**
+	 * One benchmarked operation on the i-th expression. setUp is called for all expressions of a batch
+	 * before the batch is measured.
+	 */
+	private static abstract class Benchmark
+	{
+		final String _name;
+
+		Benchmark(String name)
+		{
+			_name = name;
+		}
+
+		void setUp(int i)
+		{
+		}
+
+		abstract Object run(int i) throws ExpressionParseException;
+	}
+
+	private ExpressionBenchmark(HashMap<String, String> options) throws ExpressionParseException
+	{
+		final RandomExpressionGenerator generator = new RandomExpressionGenerator(Long.parseLong(options.getOrDefault("seed", "42")),
+				Integer.parseInt(options.getOrDefault("width", "6")), Integer.parseInt(options.getOrDefault("depth", "3")),
+				Double.parseDouble(options.getOrDefault("parens", "0.3")));
+		final int numberOfExpressions = Integer.parseInt(options.getOrDefault("expressions", "200"));
+		_warmupIterations = Integer.parseInt(options.getOrDefault("warmup", "5"));
+		_iterations = Integer.parseInt(options.getOrDefault("iterations", "10"));
+		_iterationNanos = Long.parseLong(options.getOrDefault("time", "500")) * 1000000L;
+		_threadMXBean = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).isThreadAllocatedMemorySupported()
+				? (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean() : null;
+
+		final SimpleExpressionParser parser = new SimpleExpressionParser();
+		_expressionStrs = new String[numberOfExpressions];
+		_trees = new Expression[numberOfExpressions];
+		_unflattenedTrees = new Expression[numberOfExpressions];
+		long numberOfCharacters = 0;
+		for(int i = 0; i < numberOfExpressions; i++)
+		{
+			_expressionStrs[i] = generator.next();
+			_trees[i] = parser.parse(_expressionStrs[i], false);
+			_unflattenedTrees[i] = unflatten((ExpressionNode)_trees[i]);
+			numberOfCharacters += _expressionStrs[i].length();
+		}
+		System.out.println(numberOfExpressions + " expressions, " + numberOfCharacters / Math.max(1, numberOfExpressions) + " characters on average");
+	}
+
+	/**
+	 * Creates a copy of a tree in which every operator node has two children, e.g. a+b+c becomes (a+b)+c
+	 * without parentheses, so that flatten has work to do.
+	 */
+	private static ExpressionNode unflatten(ExpressionNode node)
+	{
+		ExpressionNode copy = node.createEmptyCopy();
+		for(ExpressionNode child : node.getChildren())
+		{
+			ExpressionNode childCopy = unflatten(child);
+			if(copy.getChildren().size() == 2 && !(copy instanceof ParentheticalExpression))
+			{
+				ExpressionNode left = copy;
+				copy = node.createEmptyCopy();
+				((CompoundExpression)copy).addSubexpression(left);
+				left.setParent((CompoundExpression)copy);
+			}
+			((CompoundExpression)copy).addSubexpression(childCopy);
+			childCopy.setParent((CompoundExpression)copy);
+		}
+		return copy;
+	}
+
+	/**
+	 * Runs all benchmarks in one mode.
+	 * @param withJavaFXControls whether the benchmarks create JavaFX controls
+	 */
+	private void runAll(final boolean withJavaFXControls) throws ExpressionParseException
+	{
+		final String mode = withJavaFXControls ? "javafx" : "headless";
+		final SimpleExpressionParser parser = new SimpleExpressionParser();
+		final Expression[] copies = new Expression[_trees.length];
+		final Benchmark[] benchmarks = {
+			new Benchmark("parse")
+			{
+				Object run(int i) throws ExpressionParseException
+				{
+					return parser.parse(_expressionStrs[i], withJavaFXControls);
+				}
+			},
+			new Benchmark("flatten")
+			{
+				void setUp(int i)
+				{
+					copies[i] = _unflattenedTrees[i].deepCopy();
+					if(withJavaFXControls)
+					{
+						((ExpressionNode)copies[i]).getNode();
+					}
+				}
+
+				Object run(int i)
+				{
+					copies[i].flatten();
+					return copies[i];
+				}
+			},
+			new Benchmark("deepCopy")
+			{
+				Object run(int i)
+				{
+					Expression copy = _trees[i].deepCopy();
+					return withJavaFXControls ? ((ExpressionNode)copy).getNode() : copy;
+				}
+			},
+			new Benchmark("convertToString")
+			{
+				Object run(int i)
+				{
+					return _trees[i].convertToString(0);
+				}
+			}
+		};
+		for(Benchmark benchmark : benchmarks)
+		{
+			for(int iteration = 0; iteration < _warmupIterations; iteration++)
+			{
+				measure(benchmark);
+			}
+			final double[] nanosPerOperation = new double[_iterations];
+			double bytesPerOperation = 0;
+			for(int iteration = 0; iteration < _iterations; iteration++)
+			{
+				double[] result = measure(benchmark);
+				nanosPerOperation[iteration] = result[0];
+				bytesPerOperation += result[1] / _iterations;
+			}
+			final double mean = Arrays.stream(nanosPerOperation).average().orElse(0);
+			final double variance = Arrays.stream(nanosPerOperation).map(nanos -> (nanos - mean) * (nanos - mean)).sum() / Math.max(1, _iterations - 1);
+			System.out.printf("%-16s %-9s %14.1f +- %10.1f ns/op %14s B/op%n", benchmark._name, mode, mean, Math.sqrt(variance),
+					_threadMXBean == null ? "n/a" : String.format("%.0f", bytesPerOperation));
+		}
+	}
+
+	/**
+	 * Runs a benchmark over the expressions, again and again, for one iteration. Every pass over all
+	 * expressions is one batch: the batch is set up, then timed and sampled for allocation as a whole, so
+	 * the cost of reading the clock and the allocation counter is spread over all of its operations.
+	 * @return the nanoseconds and the allocated bytes per operation
+	 */
+	private double[] measure(Benchmark benchmark) throws ExpressionParseException
+	{
+		long nanos = 0, bytes = 0, operations = 0;
+		final long end = System.nanoTime() + _iterationNanos;
+		int hash = 0;
+		while(System.nanoTime() < end)
+		{
+			for(int i = 0; i < _expressionStrs.length; i++)
+			{
+				benchmark.setUp(i);
+			}
+			long allocatedBefore = _threadMXBean == null ? 0 : _threadMXBean.getThreadAllocatedBytes(_threadId);
+			long start = System.nanoTime();
+			for(int i = 0; i < _expressionStrs.length; i++)
+			{
+				hash += System.identityHashCode(benchmark.run(i));
+			}
+			nanos += System.nanoTime() - start;
+			bytes += _threadMXBean == null ? 0 : _threadMXBean.getThreadAllocatedBytes(_threadId) - allocatedBefore;
+			operations += _expressionStrs.length;
+		}
+		_sink += hash;
+		return new double[] { (double)nanos / operations, (double)bytes / operations };
+	}
+
+	public static void main(String[] args) throws ExpressionParseException
+	{
+		final HashMap<String, String> options = new HashMap<String, String>();
+		for(String arg : args)
+		{
+			if(!arg.startsWith("--"))
+			{
+				throw new IllegalArgumentException("Unknown argument " + arg);
+			}
+			int equals = arg.indexOf('=');
+			options.put(equals < 0 ? arg.substring(2) : arg.substring(2, equals), equals < 0 ? "true" : arg.substring(equals + 1));
+		}
+		final ExpressionBenchmark benchmark = new ExpressionBenchmark(options);
+		benchmark.runAll(false);
+		if(options.containsKey("javafx"))
+		{
+			try
+			{
+				Platform.startup(() -> { });
+			}
+			catch(RuntimeException e)
+			{
+				System.out.println("JavaFX benchmarks skipped: " + e);
+				return;
+			}
+			benchmark.runAll(true);
+			Platform.exit();
+		}
+	}
+}
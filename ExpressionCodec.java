@@ -0,0 +1,290 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A compact binary encoding of expression trees. An encoded tree is
+ *
+ *   varint  number of distinct literals
+ *   per literal: varint number of bytes, then the UTF-8 bytes
+ *   varint  number of nodes
+ *   per node, in pre-order: one kind byte (SharedExpression.LITERAL, ADDITIVE, MULTIPLICATIVE or
+ *           PARENTHETICAL), then the varint index of its literal for a literal node, or the varint
+ *           number of its children otherwise
+ *
+ * where a varint is an unsigned integer written 7 bits at a time, low bits first, with the high bit
+ * of every byte but the last set. Decoding rebuilds the tree without parsing any text. Files of many
+ * encoded trees are written and read by ExpressionArchive, which stores FORMAT_VERSION.
+ */
+public class ExpressionCodec
+{
+	/**
+	 * Version of the encoding; increase it whenever the encoding changes.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	private ExpressionCodec()
+	{
+	}
+
+	/**
+	 * Encodes an expression tree.
+	 * @param expression the root of the tree
+	 * @param out the destination
+	 * @return the number of bytes written
+	 * @throws IOException if the destination throws it
+	 */
+	public static int encode(Expression expression, OutputStream out) throws IOException
+	{
+		// Collect the literals and the node stream in one pre-order walk
+		final HashMap<String, Integer> literalIndexes = new HashMap<String, Integer>();
+		final ArrayList<String> literals = new ArrayList<String>();
+		final ByteArrayBuilder nodes = new ByteArrayBuilder();
+		final ArrayDeque<Iterator<ExpressionNode>> iterators = new ArrayDeque<Iterator<ExpressionNode>>();
+		int numberOfNodes = 0;
+		ExpressionNode node = (ExpressionNode)expression;
+		while(node != null)
+		{
+			int kind = SharedExpression.kindOf(node);
+			nodes.write(kind);
+			if(kind == SharedExpression.LITERAL)
+			{
+				Integer index = literalIndexes.get(node.getData());
+				if(index == null)
+				{
+					index = literals.size();
+					literalIndexes.put(node.getData(), index);
+					literals.add(node.getData());
+				}
+				nodes.writeVarint(index);
+			}
+			else
+			{
+				nodes.writeVarint(node.getChildren().size());
+				iterators.push(node.getChildren().iterator());
+			}
+			numberOfNodes++;
+			while(!iterators.isEmpty() && !iterators.peek().hasNext())
+			{
+				iterators.pop();
+			}
+			node = iterators.isEmpty() ? null : iterators.peek().next();
+		}
+
+		final ByteArrayBuilder header = new ByteArrayBuilder();
+		header.writeVarint(literals.size());
+		for(String literal : literals)
+		{
+			byte[] bytes = literal.getBytes(StandardCharsets.UTF_8);
+			header.writeVarint(bytes.length);
+			header.write(bytes, 0, bytes.length);
+		}
+		header.writeVarint(numberOfNodes);
+		header.writeTo(out);
+		nodes.writeTo(out);
+		return header.size() + nodes.size();
+	}
+
+	/**
+	 * Encodes an expression tree into a new array.
+	 * @param expression the root of the tree
+	 * @return the encoded tree
+	 */
+	public static byte[] encode(Expression expression)
+	{
+		final ByteArrayBuilder bytes = new ByteArrayBuilder();
+		try
+		{
+			encode(expression, bytes);
+		}
+		catch(IOException e)
+		{
+			// A ByteArrayBuilder never throws
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes one expression tree, starting at the position of the buffer and leaving the position
+	 * after the encoded tree. The tree has no JavaFX controls.
+	 * @param buffer the encoded tree
+	 * @return the root of the tree
+	 * @throws IllegalArgumentException if the buffer does not hold a valid encoded tree
+	 */
+	public static Expression decode(ByteBuffer buffer)
+	{
+		try
+		{
+			final String[] literals = new String[readCount(buffer)];
+			for(int i = 0; i < literals.length; i++)
+			{
+				byte[] bytes = new byte[readCount(buffer)];
+				buffer.get(bytes);
+				literals[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			final int numberOfNodes = readCount(buffer);
+
+			// Every compound node stays on the stack until it has all of its children
+			final ArrayDeque<CompoundExpression> parents = new ArrayDeque<CompoundExpression>();
+			final ArrayDeque<int[]> remainingChildren = new ArrayDeque<int[]>();
+			Expression root = null;
+			for(int i = 0; i < numberOfNodes; i++)
+			{
+				int kind = buffer.get();
+				Expression node;
+				int numberOfChildren = 0;
+				switch(kind)
+				{
+					case SharedExpression.LITERAL:
+						node = new LiteralExpression(literals[readVarint(buffer)]);
+						break;
+					case SharedExpression.ADDITIVE:
+						node = new AdditiveExpression("+");
+						numberOfChildren = readCount(buffer);
+						break;
+					case SharedExpression.MULTIPLICATIVE:
+						node = new MultiplicativeExpression("*");
+						numberOfChildren = readCount(buffer);
+						break;
+					case SharedExpression.PARENTHETICAL:
+						node = new ParentheticalExpression("()");
+						numberOfChildren = readCount(buffer);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown node kind " + kind + " at byte " + (buffer.position() - 1));
+				}
+				if(root == null)
+				{
+					root = node;
+				}
+				else if(parents.isEmpty())
+				{
+					throw new IllegalArgumentException("More than one root at byte " + buffer.position());
+				}
+				else
+				{
+					parents.peek().addSubexpression(node);
+					node.setParent(parents.peek());
+					if(--remainingChildren.peek()[0] == 0)
+					{
+						parents.pop();
+						remainingChildren.pop();
+					}
+				}
+				if(numberOfChildren > 0)
+				{
+					parents.push((CompoundExpression)node);
+					remainingChildren.push(new int[] { numberOfChildren });
+				}
+			}
+			if(root == null || !parents.isEmpty())
+			{
+				throw new IllegalArgumentException("Truncated node stream at byte " + buffer.position());
+			}
+			return root;
+		}
+		catch(BufferUnderflowException | ArrayIndexOutOfBoundsException | NegativeArraySizeException e)
+		{
+			throw new IllegalArgumentException("Invalid encoded expression at byte " + buffer.position(), e);
+		}
+	}
+
+	/**
+	 * Reads a varint.
+	 * @param buffer the buffer to read from
+	 * @return the value
+	 */
+	static int readVarint(ByteBuffer buffer)
+	{
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7)
+		{
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if(b >= 0)
+			{
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Varint longer than 5 bytes at byte " + buffer.position());
+	}
+
+	/**
+	 * Reads a varint that counts bytes, literals or nodes that follow it. Each of them takes at least one
+	 * byte, so a count that is larger than the rest of the buffer is rejected before anything is allocated.
+	 * @param buffer the buffer to read from
+	 * @return the count
+	 * @throws IllegalArgumentException if the rest of the buffer cannot hold that many
+	 */
+	private static int readCount(ByteBuffer buffer)
+	{
+		final int position = buffer.position();
+		final int count = readVarint(buffer);
+		if(count < 0 || count > buffer.remaining())
+		{
+			throw new IllegalArgumentException("Count " + Integer.toUnsignedString(count) + " at byte " + position + " exceeds the remaining " + buffer.remaining() + " bytes");
+		}
+		return count;
+	}
+
+	/**
+	 * A ByteArrayOutputStream without synchronization that can also write varints.
+	 */
+	private static class ByteArrayBuilder extends OutputStream
+	{
+		private byte[] _bytes = new byte[64];
+		private int _size;
+
+		public void write(int b)
+		{
+			if(_size == _bytes.length)
+			{
+				_bytes = Arrays.copyOf(_bytes, 2 * _size);
+			}
+			_bytes[_size++] = (byte)b;
+		}
+
+		public void write(byte[] bytes, int offset, int length)
+		{
+			if(_size + length > _bytes.length)
+			{
+				_bytes = Arrays.copyOf(_bytes, Math.max(2 * _bytes.length, _size + length));
+			}
+			System.arraycopy(bytes, offset, _bytes, _size, length);
+			_size += length;
+		}
+
+		void writeVarint(int value)
+		{
+			while((value & ~0x7F) != 0)
+			{
+				write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			write(value);
+		}
+
+		int size()
+		{
+			return _size;
+		}
+
+		void writeTo(OutputStream out) throws IOException
+		{
+			out.write(_bytes, 0, _size);
+		}
+
+		byte[] toByteArray()
+		{
+			return Arrays.copyOf(_bytes, _size);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Turns an expression tree into a CompiledExpression: a tree of small closures that does all the work of
+ * looking at the nodes (their kinds, literals and variable names) once, at compile time. Evaluating
+ * the compiled expression only adds, multiplies, reads constants and reads variable slots.
+ * Numbers ([0-9]+) become constants, the variables a to z become slots 0 to 25 of the variables array,
+ * and operands that are constants are folded together at compile time. The tree is walked without
+ * recursion, so it may be arbitrarily deep.
+ */
+public class ExpressionCompiler
+{
+	/**
+	 * Number of variable slots, one for every letter from a to z.
+	 */
+	public static final int NUMBER_OF_VARIABLES = 26;
+
+	/**
+	 * Compiles an expression.
+	 * @param expression the expression to compile
+	 * @return the compiled expression
+	 * @throws IllegalArgumentException if the expression has a literal that is neither a number nor a variable
+	 */
+	public static CompiledExpression compile(Expression expression)
+	{
+		// Every sum and product waits on the stacks, with its compiled children so far, until all of them are compiled
+		final ArrayDeque<ExpressionNode> parents = new ArrayDeque<ExpressionNode>();
+		final ArrayDeque<Iterator<ExpressionNode>> iterators = new ArrayDeque<Iterator<ExpressionNode>>();
+		final ArrayDeque<ArrayList<CompiledExpression>> compiledChildren = new ArrayDeque<ArrayList<CompiledExpression>>();
+		ExpressionNode node = (ExpressionNode)expression;
+		while(true)
+		{
+			// Parentheses compile to what they hold
+			while(SharedExpression.kindOf(node) == SharedExpression.PARENTHETICAL)
+			{
+				node = node.getChildren().get(0);
+			}
+			CompiledExpression compiled = null;
+			if(SharedExpression.kindOf(node) == SharedExpression.LITERAL)
+			{
+				compiled = compileLiteral(node.getData());
+			}
+			else
+			{
+				parents.push(node);
+				iterators.push(node.getChildren().iterator());
+				compiledChildren.push(new ArrayList<CompiledExpression>());
+			}
+			// Hand the compiled node to its parent and compile every parent whose children are all compiled
+			node = null;
+			while(node == null)
+			{
+				if(compiled != null)
+				{
+					if(parents.isEmpty())
+					{
+						return compiled;
+					}
+					compiledChildren.peek().add(compiled);
+					compiled = null;
+				}
+				if(iterators.peek().hasNext())
+				{
+					node = iterators.peek().next();
+				}
+				else
+				{
+					compiled = compileOperator(parents.pop(), compiledChildren.pop());
+					iterators.pop();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the variable slot of a literal.
+	 * @param literal the literal
+	 * @return the slot (0 for a, ..., 25 for z), or -1 if the literal is not a variable
+	 */
+	public static int getVariableSlot(String literal)
+	{
+		return literal.length() == 1 && literal.charAt(0) >= 'a' && literal.charAt(0) <= 'z' ? literal.charAt(0) - 'a' : -1;
+	}
+
+	/**
+	 * Returns the value of a literal that is a number.
+	 * @param literal the literal
+	 * @return the value, or NaN if the literal is not a number
+	 */
+	public static double getNumber(String literal)
+	{
+		for(int i = 0; i < literal.length(); i++)
+		{
+			if(literal.charAt(i) < '0' || literal.charAt(i) > '9')
+			{
+				return Double.NaN;
+			}
+		}
+		return literal.isEmpty() ? Double.NaN : Double.parseDouble(literal);
+	}
+
+	private static CompiledExpression compileLiteral(String literal)
+	{
+		final int slot = getVariableSlot(literal);
+		if(slot >= 0)
+		{
+			return variables -> variables[slot];
+		}
+		final double value = getNumber(literal);
+		if(Double.isNaN(value))
+		{
+			throw new IllegalArgumentException("Cannot evaluate literal: " + literal);
+		}
+		return new Constant(value);
+	}
+
+	/**
+	 * Compiles a sum or product from its compiled operands, folding the constant ones together.
+	 */
+	private static CompiledExpression compileOperator(ExpressionNode node, ArrayList<CompiledExpression> compiledChildren)
+	{
+		final boolean additive = SharedExpression.kindOf(node) == SharedExpression.ADDITIVE;
+		double constant = additive ? 0 : 1;
+		final ArrayList<CompiledExpression> operands = new ArrayList<CompiledExpression>();
+		for(CompiledExpression operand : compiledChildren)
+		{
+			if(operand instanceof Constant)
+			{
+				constant = additive ? constant + ((Constant)operand)._value : constant * ((Constant)operand)._value;
+			}
+			else
+			{
+				operands.add(operand);
+			}
+		}
+		return additive ? compileSum(constant, operands) : compileProduct(constant, operands);
+	}
+
+	private static CompiledExpression compileSum(double constant, ArrayList<CompiledExpression> operands)
+	{
+		final CompiledExpression[] terms = operands.toArray(new CompiledExpression[0]);
+		if(terms.length == 0)
+		{
+			return new Constant(constant);
+		}
+		else if(terms.length == 1 && constant == 0)
+		{
+			return terms[0];
+		}
+		else if(terms.length == 1)
+		{
+			final CompiledExpression term = terms[0];
+			return variables -> term.evaluate(variables) + constant;
+		}
+		else if(terms.length == 2 && constant == 0)
+		{
+			final CompiledExpression left = terms[0], right = terms[1];
+			return variables -> left.evaluate(variables) + right.evaluate(variables);
+		}
+		return variables -> {
+			double sum = constant;
+			for(CompiledExpression term : terms)
+			{
+				sum += term.evaluate(variables);
+			}
+			return sum;
+		};
+	}
+
+	private static CompiledExpression compileProduct(double constant, ArrayList<CompiledExpression> operands)
+	{
+		final CompiledExpression[] factors = operands.toArray(new CompiledExpression[0]);
+		if(factors.length == 0)
+		{
+			return new Constant(constant);
+		}
+		else if(factors.length == 1 && constant == 1)
+		{
+			return factors[0];
+		}
+		else if(factors.length == 1)
+		{
+			final CompiledExpression factor = factors[0];
+			return variables -> factor.evaluate(variables) * constant;
+		}
+		else if(factors.length == 2 && constant == 1)
+		{
+			final CompiledExpression left = factors[0], right = factors[1];
+			return variables -> left.evaluate(variables) * right.evaluate(variables);
+		}
+		return variables -> {
+			double product = constant;
+			for(CompiledExpression factor : factors)
+			{
+				product *= factor.evaluate(variables);
+			}
+			return product;
+		};
+	}
+
+	/**
+	 * A compiled expression that always has the same value, so that it can be folded into its parent.
+	 */
+	private static class Constant implements CompiledExpression
+	{
+		final double _value;
+
+		Constant(double value)
+		{
+			_value = value;
+		}
+
+		public double evaluate(double[] variables)
+		{
+			return _value;
+		}
+	}
+}
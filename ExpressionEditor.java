@@ -17,6 +17,18 @@ import javafx.event.EventHandler;
 import javafx.scene.layout.StackPane;
 import javafx.stage.Stage;
 import javafx.scene.paint.Color;
+import javafx.geometry.Bounds;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.effect.Blend;
+import javafx.scene.effect.BlendMode;
+import javafx.scene.effect.ColorInput;
+import javafx.scene.image.ImageView;
+import javafx.collections.FXCollections;
+import javafx.scene.control.ChoiceBox;
+import javafx.scene.layout.Region;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCodeCombination;
+import javafx.scene.input.KeyCombination;
 
 public class ExpressionEditor extends Application {
 	public static void main (String[] args) {
@@ -29,13 +41,35 @@ public class ExpressionEditor extends Application {
 	private static class MouseEventHandler implements EventHandler<MouseEvent> {
 		
 		Pane _pane;
-		Expression _rootExpression, _expressionOfFocus, _expressionOfFocusCopy;
+		ExpressionNode _rootExpression, _expressionOfFocus;
+		ExpressionHitIndex _hitIndex;
+
+		/**
+		 * The dragged copy of the focused expression: an image of it rather than a copy of its tree,
+		 * so picking up an expression of any size adds one node to the scene graph.
+		 */
+		ImageView _expressionOfFocusGhost;
 		double _clickX, _clickY;
+
+		/**
+		 * The centers of the focused expression's siblings (without the focused expression itself),
+		 * relative to the pane and taken when it was pressed, and its current position among its siblings.
+		 */
+		double[] _siblingCenters;
+		int _indexOfFocus;
+
+		/**
+		 * The history that every move is recorded in, and the position of the focused expression when it was pressed.
+		 */
+		ExpressionHistory _history;
+		int _pressIndex;
 		
-		MouseEventHandler (Pane pane_, CompoundExpression rootExpression_) {
+		MouseEventHandler (Pane pane_, CompoundExpression rootExpression_, ExpressionHistory history_) {
 			_pane = pane_;
-			_rootExpression = rootExpression_;
-			_expressionOfFocus = rootExpression_;
+			_rootExpression = (ExpressionNode) rootExpression_;
+			_history = history_;
+			_hitIndex = new ExpressionHitIndex(pane_, _rootExpression);
+			_expressionOfFocus = _rootExpression;
 			_clickX = _clickY = 0;
 		}
 
@@ -56,86 +90,171 @@ public class ExpressionEditor extends Application {
 			double currentMouseX = event.getSceneX();
 			double currentMouseY = event.getSceneY();
 			if (event.getEventType() == MouseEvent.MOUSE_PRESSED) {
-				boolean clicked = false;
-				for(ExpressionNode subExpr : ((ExpressionNode)_expressionOfFocus).getChildren())
+				final ExpressionNode parent = _expressionOfFocus;
+				final int childIndex = _hitIndex.findChildAt(parent, currentMouseX, currentMouseY);
+				if(childIndex >= 0)
 				{
-					if(subExpr.isClicked(_pane, currentMouseX, currentMouseY))
-					{
-						_clickX = currentMouseX;
-						_clickY = currentMouseY;
-						((Pane) _expressionOfFocus.getNode()).setBorder(Expression.NO_BORDER);
-						_expressionOfFocus = subExpr;
-						_expressionOfFocusCopy = subExpr.deepCopy();
-						_pane.getChildren().add(_expressionOfFocusCopy.getNode());
-						_expressionOfFocusCopy.getNode().setLayoutX(((ExpressionNode)_expressionOfFocus).getGlobalCoordinate(
-								(expression, value) -> value + expression.getNode().getLayoutX(), _expressionOfFocus, 0));
-						_expressionOfFocusCopy.getNode().setLayoutY(((ExpressionNode)_expressionOfFocus).getGlobalCoordinate(
-								(expression, value) -> value + expression.getNode().getLayoutY(), _expressionOfFocus, 0));
-						_expressionOfFocusCopy.getNode().setTranslateY(_expressionOfFocus.getNode().getTranslateY());
-						((Pane) _expressionOfFocus.getNode()).setBorder(Expression.RED_BORDER);
-						clicked = true;
-					}
+					final ExpressionNode subExpr = parent.getChildren().get(childIndex);
+					_clickX = currentMouseX;
+					_clickY = currentMouseY;
+					final double[] centers = _hitIndex.getChildCenters(parent);
+					_siblingCenters = new double[centers.length - 1];
+					System.arraycopy(centers, 0, _siblingCenters, 0, childIndex);
+					System.arraycopy(centers, childIndex + 1, _siblingCenters, childIndex, centers.length - childIndex - 1);
+					_indexOfFocus = _pressIndex = childIndex;
+					((Pane) _expressionOfFocus.getNode()).setBorder(ExpressionNodeView.NO_BORDER);
+					_expressionOfFocus = subExpr;
+					_expressionOfFocusGhost = new ImageView(subExpr.getNode().snapshot(GHOST_SNAPSHOT_PARAMETERS, null));
+					_pane.getChildren().add(_expressionOfFocusGhost);
+					_expressionOfFocusGhost.setLayoutX(_hitIndex.getChildX(parent, childIndex));
+					_expressionOfFocusGhost.setLayoutY(_hitIndex.getChildY(parent, childIndex));
+					_expressionOfFocusGhost.setTranslateY(_expressionOfFocus.getNode().getTranslateY());
+					((Pane) _expressionOfFocus.getNode()).setBorder(ExpressionNodeView.RED_BORDER);
 				}
-				if(!clicked)
+				else
 				{
-					((Pane) _expressionOfFocus.getNode()).setBorder(Expression.NO_BORDER);
+					((Pane) _expressionOfFocus.getNode()).setBorder(ExpressionNodeView.NO_BORDER);
 					_expressionOfFocus = _rootExpression;
 				}
 				//System.out.println(event.getSceneX());
 				//System.out.println(event.getSceneY());
 			} else if (event.getEventType() == MouseEvent.MOUSE_DRAGGED) {
-				if(!_rootExpression.equals(_expressionOfFocus))
+				if(_rootExpression != _expressionOfFocus)
 				{
-					((ExpressionNode)_expressionOfFocus).getLabel().setTextFill(Expression.GHOST_COLOR);
-					for(Expression child : ((ExpressionNode)_expressionOfFocus).getChildren())
+					// One effect paints the whole focused subtree in the ghost color
+					final Node focusedNode = _expressionOfFocus.getNode();
+					if(focusedNode.getEffect() == null)
 					{
-						((ExpressionNode)child).getLabel().setTextFill(Expression.GHOST_COLOR);
+						final Bounds bounds = focusedNode.getLayoutBounds();
+						focusedNode.setEffect(new Blend(BlendMode.SRC_ATOP, null,
+								new ColorInput(bounds.getMinX(), bounds.getMinY(), bounds.getWidth(), bounds.getHeight(), ExpressionNodeView.GHOST_COLOR)));
 					}
-					_expressionOfFocusCopy.getNode().setTranslateX(currentMouseX - _clickX);
-					_expressionOfFocusCopy.getNode().setTranslateY(currentMouseY - _clickY);
-					LinkedList<ExpressionNode> siblings = ((ExpressionNode)_expressionOfFocus.getParent()).getChildren();
-					int i = 0;
-					int indexOfFocusedExpression = siblings.indexOf(_expressionOfFocus);
-					while(i < siblings.size())
+					_expressionOfFocusGhost.setTranslateX(currentMouseX - _clickX);
+					_expressionOfFocusGhost.setTranslateY(currentMouseY - _clickY);
+					final int slot = findSlot(_siblingCenters, currentMouseX - _pane.getLayoutX());
+					if(slot != _indexOfFocus)
 					{
-						if(i != indexOfFocusedExpression)
-						{
-							if(i < indexOfFocusedExpression)
-							{
-								if(currentMouseX < siblings.get(i).getGlobalCoordinate(
-										(expression, value) -> value + expression.getNode().getLayoutX() + expression.getNode().getLayoutBounds().getWidth(), siblings.get(i), 0))
-								{
-									((ExpressionNode)_expressionOfFocus).swapWith(siblings.get(i));
-								}
-							} 
-							else if(i > indexOfFocusedExpression)
-							{
-								if(currentMouseX > siblings.get(i).getGlobalCoordinate(
-										(expression, value) -> value + expression.getNode().getLayoutX(), siblings.get(i), 0))
-								{
-									((ExpressionNode)_expressionOfFocus).swapWith(siblings.get(i));
-								}
-							}
-								
-						}
-						i++;
+						_expressionOfFocus.moveTo(slot);
+						_indexOfFocus = slot;
 					}
 				}
 			} else if (event.getEventType() == MouseEvent.MOUSE_RELEASED) {
 				System.out.println(_rootExpression.convertToString(0));
-				if(!_rootExpression.equals(_expressionOfFocus))
+				if(_rootExpression != _expressionOfFocus)
 				{
-					((ExpressionNode)_expressionOfFocus).getLabel().setTextFill(Color.BLACK);
-					for(Expression child : ((ExpressionNode)_expressionOfFocus).getChildren())
+					_expressionOfFocus.getNode().setEffect(null);
+					_pane.getChildren().remove(_expressionOfFocusGhost);
+					_expressionOfFocusGhost = null;
+					if(_indexOfFocus != _pressIndex)
 					{
-						((ExpressionNode)child).getLabel().setTextFill(Color.BLACK);
+						_history.recordMove((ExpressionNode) _expressionOfFocus.getParent(), _pressIndex, _indexOfFocus);
+						_pressIndex = _indexOfFocus;
 					}
-					_pane.getChildren().remove(_expressionOfFocusCopy.getNode());
 				}
 			}
 		}
 	}
 
+	/**
+	 * Parameters for the snapshot of a dragged expression: a transparent background, so only its text shows
+	 */
+	private static final SnapshotParameters GHOST_SNAPSHOT_PARAMETERS = new SnapshotParameters();
+	static {
+		GHOST_SNAPSHOT_PARAMETERS.setFill(Color.TRANSPARENT);
+	}
+
+	/**
+	 * Mouse event handler for an ExpressionLayoutView. It behaves like MouseEventHandler, but hit-tests
+	 * in the view's ExpressionLayout and lets the view draw the focus border and the dragged copy.
+	 */
+	private static class LayoutMouseEventHandler implements EventHandler<MouseEvent> {
+
+		ExpressionLayoutView _view;
+		ExpressionNode _rootExpression, _expressionOfFocus;
+		double _clickX, _clickY;
+		double[] _siblingCenters;
+		int _indexOfFocus;
+		ExpressionHistory _history;
+		int _pressIndex;
+
+		LayoutMouseEventHandler (ExpressionLayoutView view_, ExpressionHistory history_) {
+			_view = view_;
+			_history = history_;
+			_rootExpression = view_.getExpressionLayout().getRoot();
+			_expressionOfFocus = _rootExpression;
+		}
+
+		/**
+		 * Handles a mouse event on the view: a press focuses the child of the focused expression under
+		 * the mouse, a drag moves a copy of it along and moves it among its siblings, and a release
+		 * drops it.
+		 *
+		 * @param event the type of mouse event that responds to the user's actions
+		 */
+		public void handle (MouseEvent event) {
+			final ExpressionLayout layout = _view.getExpressionLayout();
+			final double layoutX = _view.toLayoutX(event.getX());
+			final double layoutY = _view.toLayoutY(event.getY());
+			if (event.getEventType() == MouseEvent.MOUSE_PRESSED) {
+				final int childIndex = layoutY >= 0 && layoutY <= layout.getHeight() ? layout.findChildAt(_expressionOfFocus, layoutX) : -1;
+				if(childIndex >= 0)
+				{
+					final double[] centers = layout.getChildCenters(_expressionOfFocus);
+					_siblingCenters = new double[centers.length - 1];
+					System.arraycopy(centers, 0, _siblingCenters, 0, childIndex);
+					System.arraycopy(centers, childIndex + 1, _siblingCenters, childIndex, centers.length - childIndex - 1);
+					_indexOfFocus = _pressIndex = childIndex;
+					_expressionOfFocus = _expressionOfFocus.getChildren().get(childIndex);
+					_clickX = event.getX();
+					_clickY = event.getY();
+				}
+				else
+				{
+					_expressionOfFocus = _rootExpression;
+				}
+				_view.setFocus(_expressionOfFocus);
+			} else if (event.getEventType() == MouseEvent.MOUSE_DRAGGED) {
+				if(_expressionOfFocus != _rootExpression)
+				{
+					_view.setGhost(_expressionOfFocus, event.getX() - _clickX, event.getY() - _clickY);
+					final int slot = findSlot(_siblingCenters, layoutX);
+					if(slot != _indexOfFocus)
+					{
+						_expressionOfFocus.moveTo(slot);
+						_indexOfFocus = slot;
+						_view.refresh((ExpressionNode) _expressionOfFocus.getParent());
+					}
+				}
+			} else if (event.getEventType() == MouseEvent.MOUSE_RELEASED) {
+				_view.setGhost(null, 0, 0);
+				if(_expressionOfFocus != _rootExpression && _indexOfFocus != _pressIndex)
+				{
+					_history.recordMove((ExpressionNode) _expressionOfFocus.getParent(), _pressIndex, _indexOfFocus);
+					_pressIndex = _indexOfFocus;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds where a dragged expression goes among its siblings.
+	 * @param siblingCenters the x-coordinates of the centers of the other siblings, from left to right
+	 * @param x the x-coordinate of the mouse
+	 * @return the number of siblings whose center lies left of the mouse
+	 */
+	private static int findSlot (double[] siblingCenters, double x) {
+		int low = 0, high = siblingCenters.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (siblingCenters[middle] < x) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
 	/**
 	 * Size of the GUI
 	 */
@@ -146,11 +265,36 @@ public class ExpressionEditor extends Application {
 	 */
 	private static final String EXAMPLE_EXPRESSION = "2*x+3*y+4*z+(7+6*z)";
 
+	/**
+	 * Ways of showing an expression: with an HBox and Labels for every node, with Labels for the
+	 * visible tokens only, or drawn on a Canvas. Automatic picks one of the first two by size.
+	 */
+	private static final String AUTOMATIC_RENDERER = "Automatic", NODE_RENDERER = "Nodes",
+		VIRTUALIZED_RENDERER = "Virtualized", CANVAS_RENDERER = "Canvas";
+
+	/**
+	 * Expressions with more tokens than this are shown in a VirtualizedExpressionView by the automatic
+	 * renderer, which only creates Labels for the visible part, instead of with an HBox and Labels for every node
+	 */
+	private static final int VIRTUALIZATION_THRESHOLD = 2000;
+
 	/**
 	 * Parser used for parsing expressions.
 	 */
 	private final ExpressionParser expressionParser = new SimpleExpressionParser();
 
+	/**
+	 * The expression currently shown, whose JavaFX controls are given back to the pool when the next one is shown.
+	 */
+	private Expression shownExpression;
+
+	/**
+	 * The history of the moves in the expression currently shown, and the view that shows it unless it
+	 * is shown with its own nodes.
+	 */
+	private ExpressionHistory history;
+	private ExpressionLayoutView shownLayoutView;
+
 	@Override
 	public void start (Stage primaryStage) {
 		primaryStage.setTitle("Expression Editor");
@@ -163,34 +307,28 @@ public class ExpressionEditor extends Application {
 
 		final Pane expressionPane = new Pane();
 
+		final ChoiceBox<String> rendererChoice = new ChoiceBox<String>(FXCollections.observableArrayList(
+			AUTOMATIC_RENDERER, NODE_RENDERER, VIRTUALIZED_RENDERER, CANVAS_RENDERER));
+		rendererChoice.setValue(AUTOMATIC_RENDERER);
+
 		// Add the callback to handle when the Parse button is pressed	
 		button.setOnMouseClicked(new EventHandler<MouseEvent>() {
 			public void handle (MouseEvent e) {
-				// Try to parse the expression
-				try {
-					// Success! Add the expression's Node to the expressionPane
-					final Expression expression = expressionParser.parse(textField.getText(), true);
-					System.out.println(expression.convertToString(0));
-					expressionPane.getChildren().clear();
-					expressionPane.getChildren().add(expression.getNode());
-					expression.getNode().setLayoutX(32);
-					expression.getNode().setLayoutY(WINDOW_HEIGHT/3);
-
-					// If the parsed expression is a CompoundExpression, then register some callbacks
-					if (expression instanceof CompoundExpression) {
-						((Pane) expression.getNode()).setBorder(Expression.NO_BORDER);
-						final MouseEventHandler eventHandler = new MouseEventHandler(expressionPane, (CompoundExpression) expression);
-						expressionPane.setOnMousePressed(eventHandler);
-						expressionPane.setOnMouseDragged(eventHandler);
-						expressionPane.setOnMouseReleased(eventHandler);
-					}
-				} catch (ExpressionParseException epe) {
-					// If we can't parse the expression, then mark it in red
-					textField.setStyle("-fx-text-fill: red");
-				}
+				showExpression(textField, rendererChoice.getValue(), expressionPane);
 			}
 		});
+		// Show the expression again whenever another renderer is chosen
+		rendererChoice.setOnAction(e -> showExpression(textField, rendererChoice.getValue(), expressionPane));
 		queryPane.getChildren().add(button);
+		queryPane.getChildren().add(rendererChoice);
+
+		// Undo and redo moves, with buttons or with Ctrl+Z and Ctrl+Y (Ctrl+Shift+Z)
+		final Button undoButton = new Button("Undo");
+		final Button redoButton = new Button("Redo");
+		undoButton.setOnAction(e -> undoMove(false));
+		redoButton.setOnAction(e -> undoMove(true));
+		queryPane.getChildren().add(undoButton);
+		queryPane.getChildren().add(redoButton);
 
 		// Reset the color to black whenever the user presses a key
 		textField.setOnKeyPressed(e -> textField.setStyle("-fx-text-fill: black"));
@@ -199,7 +337,92 @@ public class ExpressionEditor extends Application {
 		root.setTop(queryPane);
 		root.setCenter(expressionPane);
 
-		primaryStage.setScene(new Scene(root, WINDOW_WIDTH, WINDOW_HEIGHT));
+		final Scene scene = new Scene(root, WINDOW_WIDTH, WINDOW_HEIGHT);
+		scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN), () -> undoMove(false));
+		scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Y, KeyCombination.SHORTCUT_DOWN), () -> undoMove(true));
+		scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN, KeyCombination.SHIFT_DOWN), () -> undoMove(true));
+		primaryStage.setScene(scene);
 		primaryStage.show();
 	}
+
+	/**
+	 * Undoes or redoes a move in the expression currently shown: the history brings the shown tree in
+	 * line with the previous or next version, and the view that shows it is updated.
+	 * @param redo whether to redo rather than undo
+	 */
+	private void undoMove (boolean redo) {
+		if (history == null) {
+			return;
+		}
+		final ExpressionNode root = (ExpressionNode) shownExpression;
+		final ExpressionNode parent = redo ? history.redo(root) : history.undo(root);
+		if (parent != null && shownLayoutView != null) {
+			shownLayoutView.refresh(parent);
+		}
+	}
+
+	/**
+	 * Parses the expression in the textbox and shows it in the expressionPane with the specified renderer.
+	 * @param textField the textbox, which is marked in red if the expression cannot be parsed
+	 * @param renderer one of the renderer names
+	 * @param expressionPane the pane that shows the expression
+	 */
+	private void showExpression (TextField textField, String renderer, Pane expressionPane) {
+		// Try to parse the expression
+		try {
+			// Success! Add the expression's Node to the expressionPane
+			final Expression expression = expressionParser.parse(textField.getText(), false);
+			System.out.println(expression.convertToString(0));
+			expressionPane.getChildren().clear();
+			if (shownExpression != null) {
+				((ExpressionNode) shownExpression).releaseViews();
+			}
+			if (shownLayoutView != null) {
+				shownLayoutView.release();
+			}
+			shownExpression = expression;
+			history = new ExpressionHistory(expression);
+			shownLayoutView = null;
+			final ExpressionLayout layout = new ExpressionLayout(expression, TextMetrics.of(ExpressionNodeView.getFont()));
+			if (AUTOMATIC_RENDERER.equals(renderer)) {
+				renderer = layout.getNumberOfTokens() > VIRTUALIZATION_THRESHOLD ? VIRTUALIZED_RENDERER : NODE_RENDERER;
+			}
+			if (!NODE_RENDERER.equals(renderer)) {
+				final ExpressionLayoutView view = VIRTUALIZED_RENDERER.equals(renderer)
+					? new VirtualizedExpressionView(layout, 32, WINDOW_HEIGHT/3)
+					: new CanvasExpressionView(layout, 32, WINDOW_HEIGHT/3);
+				final Region viewRegion = (Region) view.getNode();
+				viewRegion.prefWidthProperty().bind(expressionPane.widthProperty());
+				viewRegion.prefHeightProperty().bind(expressionPane.heightProperty());
+				expressionPane.getChildren().add(viewRegion);
+				shownLayoutView = view;
+				if (expression instanceof CompoundExpression) {
+					final LayoutMouseEventHandler eventHandler = new LayoutMouseEventHandler(view, history);
+					viewRegion.setOnMousePressed(eventHandler);
+					viewRegion.setOnMouseDragged(eventHandler);
+					viewRegion.setOnMouseReleased(eventHandler);
+				}
+				expressionPane.setOnMousePressed(null);
+				expressionPane.setOnMouseDragged(null);
+				expressionPane.setOnMouseReleased(null);
+				return;
+			}
+			final Node expressionNode = ((ExpressionNode) expression).getNode();
+			expressionPane.getChildren().add(expressionNode);
+			expressionNode.setLayoutX(32);
+			expressionNode.setLayoutY(WINDOW_HEIGHT/3);
+
+			// If the parsed expression is a CompoundExpression, then register some callbacks
+			if (expression instanceof CompoundExpression) {
+				((Pane) expressionNode).setBorder(ExpressionNodeView.NO_BORDER);
+				final MouseEventHandler eventHandler = new MouseEventHandler(expressionPane, (CompoundExpression) expression, history);
+				expressionPane.setOnMousePressed(eventHandler);
+				expressionPane.setOnMouseDragged(eventHandler);
+				expressionPane.setOnMouseReleased(eventHandler);
+			}
+		} catch (ExpressionParseException epe) {
+			// If we can't parse the expression, then mark it in red
+			textField.setStyle("-fx-text-fill: red");
+		}
+	}
 }
@@ -0,0 +1,183 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The edit history of an expression in the editor, kept as versions of a persistent tree. Every version
+ * is a SharedExpression. Moving a child creates the next version by copying only the nodes on the path
+ * from the root to the child's parent (path copying); all other subtrees are shared with the previous
+ * version. A version therefore costs one node per level of the changed path, and the whole history takes
+ * memory in proportion to the number of changed paths, however long it grows.
+ *
+ * Every version but the first is stored with the move that created it: the path to the expression
+ * whose child moved and the indexes of the child before and after the move. Undo and redo follow that
+ * path in the editor's mutable ExpressionNode tree and move the same child back or again, so the tree
+ * stays in line with the current version. Equal operands are the same object in the versions, so the
+ * versions alone cannot tell which of several equal children moved; the stored move can. The editor's
+ * views then only have to update that one expression.
+ */
+
+public class ExpressionHistory
+{
+	private final ArrayList<SharedExpression> _versions = new ArrayList<SharedExpression>();
+
+	/**
+	 * The move that created each version after the first: the path to the parent, followed by the index
+	 * of the child before and after the move. _moves.get(i) leads from version i to version i + 1.
+	 */
+	private final ArrayList<int[]> _moves = new ArrayList<int[]>();
+	private int _currentVersion;
+
+	/**
+	 * Starts a history with one version.
+	 * @param expression the expression as it is before any edit
+	 */
+	public ExpressionHistory(Expression expression)
+	{
+		_versions.add(new ExpressionInterner().intern(expression));
+	}
+
+	/**
+	 * Returns the indexes of the children that lead from the root of a tree to an expression in it.
+	 * @param expression the expression
+	 * @return the path, which is empty for the root
+	 */
+	public static int[] pathOf(ExpressionNode expression)
+	{
+		int depth = 0;
+		for(Expression node = expression; node.getParent() != null; node = node.getParent())
+		{
+			depth++;
+		}
+		final int[] path = new int[depth];
+		ExpressionNode node = expression;
+		while(depth > 0)
+		{
+			path[--depth] = node.getIndexInParent();
+			node = (ExpressionNode)node.getParent();
+		}
+		return path;
+	}
+
+	/**
+	 * Records a move that was made in the editor's tree and creates the next version, which shares
+	 * everything off the path to the parent with the current one. Versions that were undone are dropped.
+	 * @param parent the expression whose child moved
+	 * @param fromIndex the index of the child before the move
+	 * @param toIndex the index of the child after the move
+	 * @return the new version
+	 */
+	public SharedExpression recordMove(ExpressionNode parent, int fromIndex, int toIndex)
+	{
+		final int[] path = pathOf(parent);
+		final SharedExpression[] ancestors = new SharedExpression[path.length + 1];
+		ancestors[0] = getCurrentVersion();
+		for(int i = 0; i < path.length; i++)
+		{
+			ancestors[i + 1] = ancestors[i].getChild(path[i]);
+		}
+		SharedExpression version = ancestors[path.length].withChildMoved(fromIndex, toIndex);
+		for(int i = path.length - 1; i >= 0; i--)
+		{
+			version = ancestors[i].withChild(path[i], version);
+		}
+		final int[] move = Arrays.copyOf(path, path.length + 2);
+		move[path.length] = fromIndex;
+		move[path.length + 1] = toIndex;
+		_versions.subList(_currentVersion + 1, _versions.size()).clear();
+		_moves.subList(_currentVersion, _moves.size()).clear();
+		_versions.add(version);
+		_moves.add(move);
+		_currentVersion++;
+		return version;
+	}
+
+	public SharedExpression getCurrentVersion()
+	{
+		return _versions.get(_currentVersion);
+	}
+
+	/**
+	 * @param index the number of the version; 0 is the version before any edit
+	 * @return the version
+	 */
+	public SharedExpression getVersion(int index)
+	{
+		return _versions.get(index);
+	}
+
+	public int getNumberOfVersions()
+	{
+		return _versions.size();
+	}
+
+	public int getCurrentVersionIndex()
+	{
+		return _currentVersion;
+	}
+
+	public boolean canUndo()
+	{
+		return _currentVersion > 0;
+	}
+
+	public boolean canRedo()
+	{
+		return _currentVersion < _versions.size() - 1;
+	}
+
+	/**
+	 * Goes back one version and brings the editor's tree in line with it.
+	 * @param root the root of the editor's tree, which must be in the current version
+	 * @return the expression whose children were rearranged, or null if there is nothing to undo
+	 */
+	public ExpressionNode undo(ExpressionNode root)
+	{
+		if(!canUndo())
+		{
+			return null;
+		}
+		_currentVersion--;
+		return replay(root, _moves.get(_currentVersion), true);
+	}
+
+	/**
+	 * Goes forward one version and brings the editor's tree in line with it.
+	 * @param root the root of the editor's tree, which must be in the current version
+	 * @return the expression whose children were rearranged, or null if there is nothing to redo
+	 */
+	public ExpressionNode redo(ExpressionNode root)
+	{
+		if(!canRedo())
+		{
+			return null;
+		}
+		_currentVersion++;
+		return replay(root, _moves.get(_currentVersion - 1), false);
+	}
+
+	/**
+	 * Follows the path of a move in the editor's tree and makes the move again, or takes it back.
+	 * @param root the root of the editor's tree
+	 * @param move the path to the parent, followed by the index of the child before and after the move
+	 * @param backwards whether to take the move back
+	 * @return the expression whose children were rearranged
+	 */
+	private static ExpressionNode replay(ExpressionNode root, int[] move, boolean backwards)
+	{
+		ExpressionNode node = root;
+		for(int i = 0; i < move.length - 2; i++)
+		{
+			node = node.getChildren().get(move[i]);
+		}
+		final int fromIndex = move[move.length - 2], toIndex = move[move.length - 1];
+		if(backwards)
+		{
+			node.getChildren().get(toIndex).moveTo(fromIndex);
+		}
+		else
+		{
+			node.getChildren().get(fromIndex).moveTo(toIndex);
+		}
+		return node;
+	}
+}
@@ -0,0 +1,165 @@
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.WeakChangeListener;
+import javafx.scene.Node;
+import javafx.scene.layout.Pane;
+
+/**
+ * Finds which child of an expression was clicked. For every expression whose children are hit-tested,
+ * the index remembers the extents of the children's nodes relative to the pane, sorted by x (an HBox
+ * lays its children out from left to right, without overlap). A click is then resolved with a binary
+ * search. Whenever a layout is requested anywhere in the shown tree, and again when that layout is
+ * done, all extents are dropped and they are recomputed the next time they are needed, once per
+ * expression. Extents measured while a layout is pending (e.g. right after moveTo, before the next
+ * pulse) are used for that one query only and are not kept.
+ */
+
+public class ExpressionHitIndex
+{
+	private final Pane _pane, _rootPane;
+	private final IdentityHashMap<ExpressionNode, Extents> _extents = new IdentityHashMap<ExpressionNode, Extents>();
+
+	/**
+	 * Drops the extents when a layout is requested and when it is done, since positions change in
+	 * between. The root's HBox only holds it weakly, because the HBox may be reused for another
+	 * expression after this index is gone.
+	 */
+	private final ChangeListener<Boolean> _needsLayoutListener = (observable, oldValue, needsLayout) -> invalidate();
+
+	/**
+	 * The extents of the children of one expression, relative to the pane.
+	 */
+	private static class Extents
+	{
+		final double[] _minX, _maxX, _minY, _maxY;
+
+		Extents(int numberOfChildren)
+		{
+			_minX = new double[numberOfChildren];
+			_maxX = new double[numberOfChildren];
+			_minY = new double[numberOfChildren];
+			_maxY = new double[numberOfChildren];
+		}
+	}
+
+	/**
+	 * @param pane the pane that shows the expression
+	 * @param rootExpression the expression shown in the pane
+	 */
+	public ExpressionHitIndex(Pane pane, ExpressionNode rootExpression)
+	{
+		_pane = pane;
+		_rootPane = (Pane)rootExpression.getNode();
+		_rootPane.needsLayoutProperty().addListener(new WeakChangeListener<Boolean>(_needsLayoutListener));
+	}
+
+	/**
+	 * Drops all extents, e.g. after the tree changed in a way that does not request a layout.
+	 */
+	public void invalidate()
+	{
+		_extents.clear();
+	}
+
+	/**
+	 * Finds the child of an expression whose node contains the specified point.
+	 * @param parent the expression whose children are hit-tested
+	 * @param sceneX the x-coordinate of the point in the scene
+	 * @param sceneY the y-coordinate of the point in the scene
+	 * @return the index of the child, or -1 if the point is not on any child
+	 */
+	public int findChildAt(ExpressionNode parent, double sceneX, double sceneY)
+	{
+		final Extents extents = getExtents(parent);
+		final double x = sceneX - _pane.getLayoutX(), y = sceneY - _pane.getLayoutY();
+		// Find the last child that starts at or before x
+		int low = 0, high = extents._minX.length - 1, found = -1;
+		while(low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			if(extents._minX[middle] <= x)
+			{
+				found = middle;
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle - 1;
+			}
+		}
+		if(found >= 0 && x <= extents._maxX[found] && y >= extents._minY[found] && y <= extents._maxY[found])
+		{
+			return found;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the x-coordinate of a child's node relative to the pane
+	 */
+	public double getChildX(ExpressionNode parent, int childIndex)
+	{
+		return getExtents(parent)._minX[childIndex];
+	}
+
+	/**
+	 * @return the y-coordinate of a child's node relative to the pane
+	 */
+	public double getChildY(ExpressionNode parent, int childIndex)
+	{
+		return getExtents(parent)._minY[childIndex];
+	}
+
+	/**
+	 * Returns the x-coordinates of the centers of all children's nodes relative to the pane, from left to right.
+	 * @param parent the expression whose children are measured
+	 * @return a new array with one center per child
+	 */
+	public double[] getChildCenters(ExpressionNode parent)
+	{
+		final Extents extents = getExtents(parent);
+		final double[] centers = new double[extents._minX.length];
+		for(int i = 0; i < centers.length; i++)
+		{
+			centers[i] = (extents._minX[i] + extents._maxX[i]) / 2;
+		}
+		return centers;
+	}
+
+	/**
+	 * Returns the extents of the children of an expression, computing them if needed: the position of
+	 * the expression's node is found once by walking up to the root, the children are then offset from it.
+	 */
+	private Extents getExtents(ExpressionNode parent)
+	{
+		Extents extents = _extents.get(parent);
+		if(extents == null)
+		{
+			double originX = 0, originY = 0;
+			for(ExpressionNode expression = parent; expression != null; expression = (ExpressionNode)expression.getParent())
+			{
+				originX += expression.getNode().getLayoutX();
+				originY += expression.getNode().getLayoutY();
+			}
+			final List<ExpressionNode> children = parent.getChildren();
+			extents = new Extents(children.size());
+			int i = 0;
+			for(ExpressionNode child : children)
+			{
+				Node node = child.getNode();
+				extents._minX[i] = originX + node.getLayoutX();
+				extents._maxX[i] = extents._minX[i] + node.getLayoutBounds().getWidth();
+				extents._minY[i] = originY + node.getLayoutY();
+				extents._maxY[i] = extents._minY[i] + node.getLayoutBounds().getHeight();
+				i++;
+			}
+			if(!_rootPane.isNeedsLayout())
+			{
+				_extents.put(parent, extents);
+			}
+		}
+		return extents;
+	}
+}
@@ -0,0 +1,108 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Hash-conses expression trees: every structurally distinct subtree is turned into exactly one
+ * SharedExpression, so equal subtrees -- within one tree or across many trees -- are stored once and
+ * two interned expressions are structurally equal exactly when they are the same object.
+ * The interner keeps every node it has handed out; drop the interner to release them.
+ */
+
+public class ExpressionInterner
+{
+	private final HashMap<SharedExpression, SharedExpression> _nodes = new HashMap<SharedExpression, SharedExpression>();
+
+	/**
+	 * Returns the shared node with the specified kind, data and children, creating it if it does not exist yet.
+	 * The children must have been interned by this interner.
+	 * @param kind the kind of the node
+	 * @param data the literal, for a literal node; ignored otherwise
+	 * @param children the children of the node, from left to right; the array must not be changed afterwards
+	 * @return the shared node
+	 */
+	public SharedExpression intern(int kind, String data, SharedExpression... children)
+	{
+		return intern(new SharedExpression(kind, data, children));
+	}
+
+	/**
+	 * Returns the shared node that is structurally equal to the specified node, which becomes the shared
+	 * node if there is none yet. The node's children must have been interned by this interner.
+	 * @param node the node to intern
+	 * @return the shared node
+	 */
+	public SharedExpression intern(SharedExpression node)
+	{
+		SharedExpression shared = _nodes.putIfAbsent(node, node);
+		return shared == null ? node : shared;
+	}
+
+	/**
+	 * Interns every subtree of the specified expression tree, from the leaves up.
+	 * @param expression the root of the tree
+	 * @return the shared node for the whole tree
+	 */
+	public SharedExpression intern(Expression expression)
+	{
+		return intern(expression, false);
+	}
+
+	/**
+	 * Interns the canonical form of the specified expression tree, in which the operands of every sum and
+	 * product are sorted by SharedExpression.STRUCTURAL_ORDER. Two trees that differ only in the order of
+	 * operands of + and * (such as a+b*c and c*b+a) have the same canonical form, so with one interner they
+	 * are equal under commutativity exactly when their canonical forms are the same object.
+	 * @param expression the root of the tree
+	 * @return the shared node for the canonical form of the whole tree
+	 */
+	public SharedExpression internIgnoringOrder(Expression expression)
+	{
+		return intern(expression, true);
+	}
+
+	private SharedExpression intern(Expression expression, boolean sortOperands)
+	{
+		final ArrayDeque<ExpressionNode> nodes = new ArrayDeque<ExpressionNode>();
+		final ArrayDeque<Iterator<ExpressionNode>> iterators = new ArrayDeque<Iterator<ExpressionNode>>();
+		final ArrayDeque<SharedExpression> interned = new ArrayDeque<SharedExpression>();
+		nodes.push((ExpressionNode)expression);
+		iterators.push(((ExpressionNode)expression).getChildren().iterator());
+		while(!nodes.isEmpty())
+		{
+			if(iterators.peek().hasNext())
+			{
+				ExpressionNode child = iterators.peek().next();
+				nodes.push(child);
+				iterators.push(child.getChildren().iterator());
+			}
+			else
+			{
+				// All children are interned and sit on top of the interned stack, last child first
+				ExpressionNode node = nodes.pop();
+				iterators.pop();
+				SharedExpression[] children = new SharedExpression[node.getChildren().size()];
+				for(int i = children.length - 1; i >= 0; i--)
+				{
+					children[i] = interned.pop();
+				}
+				int kind = SharedExpression.kindOf(node);
+				if(sortOperands && (kind == SharedExpression.ADDITIVE || kind == SharedExpression.MULTIPLICATIVE))
+				{
+					Arrays.sort(children, SharedExpression.STRUCTURAL_ORDER);
+				}
+				interned.push(intern(kind, node.getData(), children));
+			}
+		}
+		return interned.pop();
+	}
+
+	/**
+	 * @return the number of distinct nodes held by the interner
+	 */
+	public int size()
+	{
+		return _nodes.size();
+	}
+}
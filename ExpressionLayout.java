@@ -0,0 +1,276 @@
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Lays out an expression the way ExpressionNodeView shows it -- on one line, literals as they are,
+ * operators between the children, parentheses around parenthetical expressions -- but without any
+ * JavaFX nodes. The line is a sequence of tokens, each with its text, x-coordinate and width from a
+ * TextMetrics table, and every expression covers a contiguous range of tokens. Views that only create
+ * nodes for what is visible, or draw the tokens themselves, use the layout for drawing and hit-testing.
+ */
+
+public class ExpressionLayout
+{
+	private final ExpressionNode _root;
+	private final TextMetrics _metrics;
+	private String[] _texts = new String[16];
+	private double[] _xs = new double[16], _widths = new double[16];
+	private int _numberOfTokens;
+	private final double _width;
+
+	/**
+	 * For every expression in the tree: its first token and the token after its last one.
+	 */
+	private final IdentityHashMap<ExpressionNode, int[]> _spans = new IdentityHashMap<ExpressionNode, int[]>();
+
+	/**
+	 * Position where layOut writes the next token, and its x-coordinate.
+	 */
+	private int _nextToken;
+	private double _nextX;
+
+	/**
+	 * Lays out a whole tree.
+	 * @param root the root of the tree
+	 * @param metrics the widths of the characters
+	 */
+	public ExpressionLayout(Expression root, TextMetrics metrics)
+	{
+		_root = (ExpressionNode)root;
+		_metrics = metrics;
+		layOut(_root, 0, 0);
+		_numberOfTokens = _nextToken;
+		_width = _nextX;
+	}
+
+	/**
+	 * Lays out a subtree again after the children of its root were rearranged, e.g. with moveTo or
+	 * swapWith. The subtree keeps its tokens, so nothing outside of it changes. Trees whose structure
+	 * changed need a new layout.
+	 * @param expression the expression whose children were rearranged
+	 */
+	public void update(ExpressionNode expression)
+	{
+		final int firstToken = _spans.get(expression)[0];
+		layOut(expression, firstToken, _xs[firstToken]);
+	}
+
+	/**
+	 * Writes the tokens of a subtree, starting at a token and an x-coordinate. The subtree is walked
+	 * through parent links and indexes in parents, so it may be arbitrarily deep.
+	 */
+	private void layOut(ExpressionNode subtree, int firstToken, double x)
+	{
+		_nextToken = firstToken;
+		_nextX = x;
+		ExpressionNode node = subtree;
+		while(true)
+		{
+			int[] span = _spans.get(node);
+			if(span == null)
+			{
+				span = new int[2];
+				_spans.put(node, span);
+			}
+			span[0] = _nextToken;
+			if(node instanceof ParentheticalExpression)
+			{
+				addToken("(");
+			}
+			else if(node.getChildren().isEmpty())
+			{
+				addToken(node.getData());
+			}
+			if(!node.getChildren().isEmpty())
+			{
+				node = node.getChildren().get(0);
+				continue;
+			}
+			// Close this node and every ancestor it is the last child of, then go on with the next sibling
+			while(true)
+			{
+				if(node instanceof ParentheticalExpression)
+				{
+					addToken(")");
+				}
+				_spans.get(node)[1] = _nextToken;
+				if(node == subtree)
+				{
+					return;
+				}
+				ExpressionNode parent = (ExpressionNode)node.getParent();
+				int nextIndex = node.getIndexInParent() + 1;
+				if(nextIndex < parent.getChildren().size())
+				{
+					if(!(parent instanceof ParentheticalExpression))
+					{
+						addToken(parent.getData());
+					}
+					node = parent.getChildren().get(nextIndex);
+					break;
+				}
+				node = parent;
+			}
+		}
+	}
+
+	private void addToken(String text)
+	{
+		if(_nextToken == _texts.length)
+		{
+			_texts = Arrays.copyOf(_texts, 2 * _nextToken);
+			_xs = Arrays.copyOf(_xs, 2 * _nextToken);
+			_widths = Arrays.copyOf(_widths, 2 * _nextToken);
+		}
+		final double width = _metrics.getWidth(text);
+		_texts[_nextToken] = text;
+		_xs[_nextToken] = _nextX;
+		_widths[_nextToken] = width;
+		_nextToken++;
+		_nextX += width;
+	}
+
+	public ExpressionNode getRoot()
+	{
+		return _root;
+	}
+
+	public TextMetrics getMetrics()
+	{
+		return _metrics;
+	}
+
+	/**
+	 * @return the width of the whole line
+	 */
+	public double getWidth()
+	{
+		return _width;
+	}
+
+	/**
+	 * @return the height of the line
+	 */
+	public double getHeight()
+	{
+		return _metrics.getHeight();
+	}
+
+	public int getNumberOfTokens()
+	{
+		return _numberOfTokens;
+	}
+
+	public String getTokenText(int token)
+	{
+		return _texts[token];
+	}
+
+	public double getTokenX(int token)
+	{
+		return _xs[token];
+	}
+
+	public double getTokenWidth(int token)
+	{
+		return _widths[token];
+	}
+
+	/**
+	 * Finds the token at an x-coordinate.
+	 * @param x the x-coordinate
+	 * @return the last token that starts at or before x, or -1 if x lies before the first token
+	 */
+	public int findToken(double x)
+	{
+		int low = 0, high = _numberOfTokens - 1, found = -1;
+		while(low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			if(_xs[middle] <= x)
+			{
+				found = middle;
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the first token of an expression in the tree
+	 */
+	public int getFirstToken(ExpressionNode expression)
+	{
+		return _spans.get(expression)[0];
+	}
+
+	/**
+	 * @return the token after the last token of an expression in the tree
+	 */
+	public int getEndToken(ExpressionNode expression)
+	{
+		return _spans.get(expression)[1];
+	}
+
+	/**
+	 * @return the x-coordinate where an expression in the tree starts
+	 */
+	public double getStartX(ExpressionNode expression)
+	{
+		return _xs[getFirstToken(expression)];
+	}
+
+	/**
+	 * @return the x-coordinate where an expression in the tree ends
+	 */
+	public double getEndX(ExpressionNode expression)
+	{
+		final int lastToken = getEndToken(expression) - 1;
+		return _xs[lastToken] + _widths[lastToken];
+	}
+
+	/**
+	 * Finds the child of an expression at an x-coordinate with a binary search over the children.
+	 * @param parent the expression whose children are hit-tested
+	 * @param x the x-coordinate
+	 * @return the index of the child, or -1 if x is not on any child
+	 */
+	public int findChildAt(ExpressionNode parent, double x)
+	{
+		final List<ExpressionNode> children = parent.getChildren();
+		int low = 0, high = children.size() - 1, found = -1;
+		while(low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			if(getStartX(children.get(middle)) <= x)
+			{
+				found = middle;
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle - 1;
+			}
+		}
+		return found >= 0 && x <= getEndX(children.get(found)) ? found : -1;
+	}
+
+	/**
+	 * @return the x-coordinates of the centers of all children of an expression, from left to right
+	 */
+	public double[] getChildCenters(ExpressionNode parent)
+	{
+		final List<ExpressionNode> children = parent.getChildren();
+		final double[] centers = new double[children.size()];
+		for(int i = 0; i < centers.length; i++)
+		{
+			centers[i] = (getStartX(children.get(i)) + getEndX(children.get(i))) / 2;
+		}
+		return centers;
+	}
+}
@@ -0,0 +1,60 @@
+import javafx.scene.Node;
+
+/**
+ * A view that shows an expression from an ExpressionLayout rather than from the HBoxes and Labels of
+ * the expression's own nodes. The editor hit-tests in layout coordinates and tells the view what to
+ * show as focused and as ghost.
+ */
+
+interface ExpressionLayoutView
+{
+	/**
+	 * @return the layout the view shows
+	 */
+	ExpressionLayout getExpressionLayout();
+
+	/**
+	 * @return the JavaFX node to add to the scene
+	 */
+	Node getNode();
+
+	/**
+	 * Converts an x-coordinate in the view's node to the layout.
+	 * @param x the x-coordinate relative to the view's node
+	 * @return the x-coordinate in the layout
+	 */
+	double toLayoutX(double x);
+
+	/**
+	 * Converts a y-coordinate in the view's node to the layout, in which the line goes from 0 to its height.
+	 * @param y the y-coordinate relative to the view's node
+	 * @return the y-coordinate in the layout
+	 */
+	double toLayoutY(double y);
+
+	/**
+	 * Shows a border around an expression.
+	 * @param expression the focused expression, or null for none
+	 */
+	void setFocus(ExpressionNode expression);
+
+	/**
+	 * Shows an expression in ExpressionNodeView.GHOST_COLOR and a copy of it moved by the specified distance.
+	 * @param expression the expression being dragged, or null for none
+	 * @param translateX the horizontal distance of the copy
+	 * @param translateY the vertical distance of the copy
+	 */
+	void setGhost(ExpressionNode expression, double translateX, double translateY);
+
+	/**
+	 * Updates the layout and the view after the children of an expression were rearranged.
+	 * @param expression the expression whose children were rearranged
+	 */
+	void refresh(ExpressionNode expression);
+
+	/**
+	 * Gives the pooled JavaFX controls of the view back to ExpressionNodeView when the view is replaced.
+	 * The view must not be used afterwards.
+	 */
+	void release();
+}
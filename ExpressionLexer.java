@@ -0,0 +1,162 @@
+/**
+ * Splits the characters of an expression into tokens for the parser. Every character is classified
+ * with a lookup table, and the tokens are written into an int array as (kind, start, length) triples.
+ * The array is kept and reused by the next call to tokenize, so a lexer that is used over and over
+ * stops allocating once its array is large enough. A lexer must not be shared between threads.
+ */
+
+public class ExpressionLexer
+{
+	/**
+	 * Token kinds.
+	 */
+	public static final int LITERAL = 0, PLUS = 1, TIMES = 2, OPEN_PARENTHESIS = 3, CLOSE_PARENTHESIS = 4;
+
+	/**
+	 * Number of ints used for every token in the token array.
+	 */
+	public static final int TOKEN_SIZE = 3;
+
+	/**
+	 * Character classes used in the lookup table.
+	 */
+	private static final byte LITERAL_CHARACTER = 0, SPACE = 1, INVALID = 2, OPERATOR = 3;
+
+	/**
+	 * The class of every ASCII character; every other character may be part of a literal.
+	 */
+	private static final byte[] CHARACTER_CLASSES = new byte[128];
+
+	/**
+	 * The token kind of every operator or parenthesis character.
+	 */
+	private static final byte[] TOKEN_KINDS = new byte[128];
+
+	static
+	{
+		for(char character : "~`!@#$%^&-_={[}]:;\"\\'?/><.,|".toCharArray())
+		{
+			CHARACTER_CLASSES[character] = INVALID;
+		}
+		CHARACTER_CLASSES[' '] = SPACE;
+		CHARACTER_CLASSES['+'] = OPERATOR;
+		CHARACTER_CLASSES['*'] = OPERATOR;
+		CHARACTER_CLASSES['('] = OPERATOR;
+		CHARACTER_CLASSES[')'] = OPERATOR;
+		TOKEN_KINDS['+'] = PLUS;
+		TOKEN_KINDS['*'] = TIMES;
+		TOKEN_KINDS['('] = OPEN_PARENTHESIS;
+		TOKEN_KINDS[')'] = CLOSE_PARENTHESIS;
+	}
+
+	private int[] _tokens = new int[TOKEN_SIZE * 16];
+	private int _numberOfTokens;
+	private int _errorOffset = -1;
+
+	/**
+	 * Returns the class of the specified character.
+	 * @param character the character to classify
+	 * @return LITERAL_CHARACTER, SPACE, INVALID or OPERATOR
+	 */
+	private static byte classify(char character)
+	{
+		return character < 128 ? CHARACTER_CLASSES[character] : LITERAL_CHARACTER;
+	}
+
+	/**
+	 * Splits the characters between start and end of the input into tokens. A literal token spans a run
+	 * of literal characters, including any spaces between them but not the spaces after them.
+	 * @param input the characters to split
+	 * @param start the index of the first character to split
+	 * @param end the index after the last character to split
+	 * @return true if every character could be classified, false if an invalid character was found
+	 */
+	public boolean tokenize(CharSequence input, int start, int end)
+	{
+		_numberOfTokens = 0;
+		_errorOffset = -1;
+		int i = start;
+		while(i < end)
+		{
+			char character = input.charAt(i);
+			byte characterClass = classify(character);
+			if(characterClass == SPACE)
+			{
+				i++;
+			}
+			else if(characterClass == OPERATOR)
+			{
+				addToken(TOKEN_KINDS[character], i, 1);
+				i++;
+			}
+			else if(characterClass == LITERAL_CHARACTER)
+			{
+				int literalStart = i;
+				int literalEnd = i;
+				// LITERAL_CHARACTER and SPACE are the two lowest classes
+				while(i < end && (characterClass = classify(input.charAt(i))) <= SPACE)
+				{
+					i++;
+					if(characterClass == LITERAL_CHARACTER)
+					{
+						literalEnd = i;
+					}
+				}
+				addToken(LITERAL, literalStart, literalEnd - literalStart);
+			}
+			else
+			{
+				_errorOffset = i;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Appends a token to the token array, growing the array if it is full.
+	 * @param kind the kind of the token
+	 * @param start the index of the first character of the token
+	 * @param length the number of characters of the token
+	 */
+	private void addToken(int kind, int start, int length)
+	{
+		int offset = _numberOfTokens * TOKEN_SIZE;
+		if(offset + TOKEN_SIZE > _tokens.length)
+		{
+			int[] tokens = new int[_tokens.length * 2];
+			System.arraycopy(_tokens, 0, tokens, 0, offset);
+			_tokens = tokens;
+		}
+		_tokens[offset] = kind;
+		_tokens[offset + 1] = start;
+		_tokens[offset + 2] = length;
+		_numberOfTokens++;
+	}
+
+	/**
+	 * Returns the token array: token i has its kind at index 3*i, its start at 3*i+1 and its length at 3*i+2.
+	 * Only the first getNumberOfTokens() tokens are valid, and the array is overwritten by the next call to tokenize.
+	 * @return the token array
+	 */
+	public int[] getTokens()
+	{
+		return _tokens;
+	}
+
+	/**
+	 * @return the number of tokens found by the last call to tokenize
+	 */
+	public int getNumberOfTokens()
+	{
+		return _numberOfTokens;
+	}
+
+	/**
+	 * @return the index of the first invalid character found by the last call to tokenize, or -1 if there was none
+	 */
+	public int getErrorOffset()
+	{
+		return _errorOffset;
+	}
+}
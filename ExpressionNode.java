@@ -1,91 +1,211 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
-import java.util.function.Function;
 
-import javafx.event.EventHandler;
 import javafx.scene.Node;
 import javafx.scene.control.Label;
-import javafx.scene.layout.HBox;
-import javafx.scene.text.Font;
-import javafx.scene.text.FontPosture;
-import javafx.scene.text.FontWeight;
 import javafx.scene.layout.Pane;
 
 /**
  * An abstract class that constructs a tree from the given list of expressions. Converts the expression into a String
  * and proceeds to flatten the tree if the parent node contains the same operator in the lext level of its children.
+ * The node itself only holds data; its JavaFX controls live in an ExpressionNodeView that is created the first
+ * time getNode() is called.
  */
 
 public class ExpressionNode implements Expression
 {
-		
-		private Label _label;
-		protected HBox _horizontalBox = new HBox();
+
+		private String _data;
+		private ExpressionNodeView _view;
 		private CompoundExpression _parent;
-		private LinkedList<ExpressionNode> _children;
-		
+		private final ArrayList<ExpressionNode> _children;
+		private List<ExpressionNode> _unmodifiableChildren;
+		private int _indexInParent;
+
+		/**
+		 * Structural hash codes, with and without the order of operands, cached until the subtree changes.
+		 */
+		private int _hashCode, _commutativeHashCode;
+		private boolean _hashCodesValid;
+
+		/**
+		 * The canonical form of this subtree (see getCanonicalForm), or null until it is asked for and
+		 * after the subtree changed.
+		 */
+		private SharedExpression _canonicalForm;
+
+		/**
+		 * The canonical forms of all subtrees that are in use, so that equal canonical forms are the same
+		 * object. They are only held weakly: a canonical form is dropped once no ExpressionNode (and no
+		 * larger canonical form) refers to it any more, and its entry is removed the next time a form is
+		 * interned. The map does not lock for lookups, so threads that compare or deduplicate separate trees
+		 * do not wait for each other.
+		 */
+		private static final ConcurrentHashMap<CanonicalFormReference, CanonicalFormReference> _canonicalForms =
+			new ConcurrentHashMap<CanonicalFormReference, CanonicalFormReference>();
+		private static final ReferenceQueue<SharedExpression> _droppedCanonicalForms = new ReferenceQueue<SharedExpression>();
+
 		public ExpressionNode(String data)
 		{
-			_label = new Label(data);
-			_label.setFont(Font.font("Arial", FontWeight.BOLD, FontPosture.REGULAR, 30));
+			_data = data;
 			_parent = null;
-			_children = new LinkedList<ExpressionNode>();
-			_horizontalBox.getChildren().add(_label);
-			//((Pane)_horizontalBox).setBorder(Expression.RED_BORDER);
+			_children = new ArrayList<ExpressionNode>(0);
+			_indexInParent = -1;
+		}
+
+		/**
+		 * @return Return the data associated with this ExpressionNode: the literal, the operator or "()".
+		 */
+		public String getData()
+		{
+			return _data;
 		}
-		
+
 		/**
-		 * @return Return the data associated with this ExpressionNode.
+		 * @return Return the label that shows this ExpressionNode, creating the JavaFX controls if needed.
 		 */
 		public Label getLabel()
 		{
-			return _label;
+			return getView().getLabel();
 		}
-		
-		public void setLabel(String str)
+
+		/**
+		 *
+		 * @return Return a read-only list of children associated with an ExpressionNode. Children are added
+		 * with addChild and rearranged with swapWith and moveTo, which keep every child's index up to date.
+		 */
+		public List<ExpressionNode> getChildren()
 		{
-			_label.setText(str);
+			if(_unmodifiableChildren == null)
+			{
+				_unmodifiableChildren = Collections.unmodifiableList(_children);
+			}
+			return _unmodifiableChildren;
 		}
-		
+
 		/**
-		 * 
-		 * @return Return a linked list of children associated with an ExpressionNode.
+		 * Adds a child after the existing children and makes this ExpressionNode its parent.
+		 * @param child the child to add
 		 */
-		public LinkedList<ExpressionNode> getChildren()
+		protected void addChild(ExpressionNode child)
 		{
-			return _children;
+			child._indexInParent = _children.size();
+			child._parent = (CompoundExpression)this;
+			_children.add(child);
+			invalidateHashCodes();
 		}
-		
+
+		/**
+		 * @return Return the position of this ExpressionNode among its siblings, or -1 if it has no parent.
+		 */
+		public int getIndexInParent()
+		{
+			return _indexInParent;
+		}
+
+		/**
+		 * Sets the index in parent of the children from start to end after they were moved.
+		 */
+		private void renumberChildren(int start, int end)
+		{
+			for(int i = start; i < end; i++)
+			{
+				_children.get(i)._indexInParent = i;
+			}
+		}
+
+		/**
+		 * @return Return the view of this ExpressionNode, creating it (and the views of all its children) if needed.
+		 */
+		public ExpressionNodeView getView()
+		{
+			if(_view == null)
+			{
+				_view = new ExpressionNodeView(this);
+			}
+			return _view;
+		}
+
+		/**
+		 * @return Return true if the JavaFX controls of this ExpressionNode have been created.
+		 */
+		public boolean hasView()
+		{
+			return _view != null;
+		}
+
+		/**
+		 * Returns the JavaFX node associated with this expression, creating its view if there is none yet.
+		 * @return the JavaFX node associated with this expression
+		 */
 		public Node getNode()
 		{
-			return _horizontalBox;
+			return getView().getNode();
+		}
+
+		/**
+		 * Gives the JavaFX controls of this ExpressionNode and all of its descendants back to the pool of
+		 * ExpressionNodeView, e.g. when the tree is no longer shown. They are created again if getNode() is
+		 * called afterwards. Parents are released before their children, so every HBox is emptied once.
+		 */
+		public void releaseViews()
+		{
+			final ArrayDeque<ExpressionNode> nodes = new ArrayDeque<ExpressionNode>();
+			nodes.push(this);
+			while(!nodes.isEmpty())
+			{
+				ExpressionNode node = nodes.pop();
+				if(node._view != null)
+				{
+					node._view.release();
+					node._view = null;
+				}
+				for(ExpressionNode child : node._children)
+				{
+					nodes.push(child);
+				}
+			}
+		}
+
+		/**
+		 * Creates a node of the same type and with the same data as this one, but without any children.
+		 * @return the new node
+		 */
+		protected ExpressionNode createEmptyCopy()
+		{
+			return new ExpressionNode(getData());
 		}
-		
+
 		/**
-		 * Method that recursively calls itself to create a String of type Expression and its children
-		 * that starts at the given indent level.
+		 * Method that appends a String of type Expression and its children that starts at the given
+		 * indent level. The tree is written by ExpressionWriter, which works for trees of any depth.
 		 * @param stringBuilder the stringBuilder that appends a name and a new line to create a String
 		 * @param indentLevel the current indentation level
 		 */
 		public void convertToString(StringBuilder stringBuilder, int indentLevel)
 		{
-			
-			indent(stringBuilder, indentLevel);
-
-			stringBuilder.append(_label.getText());
-
-			stringBuilder.append('\n');
-
-			for (Expression expr : _children) {
-				expr.convertToString(stringBuilder, indentLevel + 1);
+			try
+			{
+				ExpressionWriter.writeTree(this, stringBuilder, indentLevel);
+			}
+			catch(IOException e)
+			{
+				// A StringBuilder never throws
+				throw new UncheckedIOException(e);
 			}
-			
-			System.out.println(stringBuilder.toString());
 		}
-		
+
 		/**
 		 * Helper method for indentation for StirngBuilder
 		 * @param stringBuilder the stringBuilder that appends each tab character
@@ -107,7 +227,7 @@ public class ExpressionNode implements Expression
 	 * Returns the expression's parent
 	 * @return the expression's parent
 	 */
-		
+
 		public CompoundExpression getParent()
 		{
 			return _parent;
@@ -122,12 +242,12 @@ public class ExpressionNode implements Expression
 		{
 			_parent = parent;
 		}
-		
+
 		public double getGlobalCoordinate(BiFunction<Expression, Double, Double> callback, Expression expression, double value)
 		{
 			value = callback.apply(expression, value);
 			if(expression.getParent() == null)
-			{	
+			{
 				return value;
 			}
 			else
@@ -149,10 +269,10 @@ public class ExpressionNode implements Expression
 
 		public boolean isClicked(Pane mainPane, double mouseX, double mouseY)
 		{
-			double hBoxX = getGlobalCoordinate((expression, value) -> value + expression.getNode().getLayoutX(), this, 0) + mainPane.getLayoutX();
-			double hBoxY = getGlobalCoordinate((expression, value) -> value + expression.getNode().getLayoutY(), this, 0) + mainPane.getLayoutY();
-			double hBoxX2 = hBoxX + _horizontalBox.getLayoutBounds().getWidth();
-			double hBoxY2 = hBoxY + _horizontalBox.getLayoutBounds().getHeight();
+			double hBoxX = getGlobalCoordinate((expression, value) -> value + ((ExpressionNode)expression).getNode().getLayoutX(), this, 0) + mainPane.getLayoutX();
+			double hBoxY = getGlobalCoordinate((expression, value) -> value + ((ExpressionNode)expression).getNode().getLayoutY(), this, 0) + mainPane.getLayoutY();
+			double hBoxX2 = hBoxX + getNode().getLayoutBounds().getWidth();
+			double hBoxY2 = hBoxY + getNode().getLayoutBounds().getHeight();
 			if(mouseX >= hBoxX && mouseX <= hBoxX2 && mouseY >= hBoxY && mouseY <= hBoxY2)
 			{
 				return true;
@@ -167,45 +287,86 @@ public class ExpressionNode implements Expression
 	 * Method takes in an expression and gets the index of another expression to "swap" its location with.
 	 * The first part of the method swaps the expressions in the parsed expression tree by taking the indexes of
 	 * both expressions and setting them to each other. In the second part of the method, it swaps the expressions'
-	 * hboxes and setting them to each other.
+	 * nodes in the parent's HBox, if the parent is being shown.
 	 * @param expression the expression that is going to be swapped with
 	 */
 
 	public void swapWith(Expression expression)
 	{
 		//Swap branches of the tree!
-		int indexOfThis = ((ExpressionNode)_parent)._children.indexOf(this);
-		int indexOfOther = ((ExpressionNode)_parent)._children.indexOf(expression);
-		ExpressionNode placeHolder = ((ExpressionNode)_parent)._children.get(indexOfThis);
-		((ExpressionNode)_parent)._children.set(indexOfThis, ((ExpressionNode)_parent)._children.get(indexOfOther));
-		((ExpressionNode)_parent)._children.set(indexOfOther, placeHolder);
-		
+		ExpressionNode parent = (ExpressionNode)_parent;
+		ExpressionNode other = (ExpressionNode)expression;
+		int indexOfThis = _indexInParent;
+		int indexOfOther = other._indexInParent;
+		parent._children.set(indexOfThis, other);
+		parent._children.set(indexOfOther, this);
+		_indexInParent = indexOfOther;
+		other._indexInParent = indexOfThis;
+		parent.invalidateHashCodes();
+
 		//Swap HBoxes!
-		//int indexOfParentLabel = ((HBox)_parent.getNode()).getChildren().indexOf(((ExpressionNode)_parent)._label);
-		int indexOfThisHBox = ((HBox)_parent.getNode()).getChildren().indexOf(_horizontalBox);
-		int indexOfOtherHBox = ((HBox)_parent.getNode()).getChildren().indexOf(expression.getNode());
-		((HBox)_parent.getNode()).getChildren().set(indexOfOtherHBox, new Label());
-		((HBox)_parent.getNode()).getChildren().set(indexOfThisHBox, expression.getNode());
-		((HBox)_parent.getNode()).getChildren().set(indexOfOtherHBox, _horizontalBox);
+		if(parent.hasView())
+		{
+			parent._view.swapChildren(indexOfThis, indexOfOther);
+		}
 	}
-		
+
+	/**
+	 * Moves this expression to another position among its siblings, in the tree and in the parent's
+	 * HBox if the parent is being shown. Unlike a chain of swapWith calls, the siblings in between keep
+	 * their order and only one move is made.
+	 * @param index the position of this expression among its siblings after the move
+	 */
+
+	public void moveTo(int index)
+	{
+		ExpressionNode parent = (ExpressionNode)_parent;
+		int indexOfThis = _indexInParent;
+		if(indexOfThis == index)
+		{
+			return;
+		}
+		parent._children.remove(indexOfThis);
+		parent._children.add(index, this);
+		parent.renumberChildren(Math.min(indexOfThis, index), Math.max(indexOfThis, index) + 1);
+		parent.invalidateHashCodes();
+		if(parent.hasView())
+		{
+			parent._view.moveChild(indexOfThis, index);
+		}
+	}
+
 	/**
 	 * Creates and returns a deep copy of the expression.
 	 * The entire tree rooted at the target node is copied, i.e.,
 	 * the copied Expression is as deep as possible.
+	 * The tree is copied with an explicit stack, so it may be arbitrarily deep.
 	 * @return the deep copy
 	 */
 
 	public Expression deepCopy()
 	{
-		final Expression expressionCopy = new ExpressionNode(_label.getText());
-		for (Expression expression : _children) {
-			((ExpressionNode)expressionCopy)._children.add((ExpressionNode) expression.deepCopy());
-			((HBox)expressionCopy.getNode()).getChildren().add(((ExpressionNode)expressionCopy)._children.getLast().getNode());
-		}
-		int indexOfLabel = _horizontalBox.getChildren().indexOf(_label);
-		((HBox)expressionCopy.getNode()).getChildren().remove(((ExpressionNode)expressionCopy).getLabel());
-		((HBox)expressionCopy.getNode()).getChildren().add(indexOfLabel,((ExpressionNode)expressionCopy).getLabel());
+		final ExpressionNode expressionCopy = createEmptyCopy();
+		// Pairs of a node whose children still have to be copied and its copy
+		final ArrayDeque<ExpressionNode> originals = new ArrayDeque<ExpressionNode>();
+		final ArrayDeque<ExpressionNode> copies = new ArrayDeque<ExpressionNode>();
+		originals.push(this);
+		copies.push(expressionCopy);
+		while(!originals.isEmpty())
+		{
+			ExpressionNode original = originals.pop();
+			ExpressionNode copy = copies.pop();
+			for(ExpressionNode expression : original._children)
+			{
+				ExpressionNode childCopy = expression.createEmptyCopy();
+				copy.addChild(childCopy);
+				if(!expression._children.isEmpty())
+				{
+					originals.push(expression);
+					copies.push(childCopy);
+				}
+			}
+		}
 		return expressionCopy;
 	}
 
@@ -215,30 +376,335 @@ public class ExpressionNode implements Expression
 	 * or additive expression x whose first or last
 	 * child c is of the same type as x, the children of c will be added to x, and
 	 * c itself will be removed. This method modifies the expression itself.
+	 * The tree is walked from the top with explicit stacks: the children of a node are gathered by
+	 * expanding all same-operator descendants at once, so every node is visited once and trees of
+	 * any depth are flattened in linear time.
 	 */
 
 		public void flatten()
 		{
-			if (_children.size() > 0) 
+			final ArrayDeque<ExpressionNode> nodes = new ArrayDeque<ExpressionNode>();
+			final ArrayDeque<Iterator<ExpressionNode>> iterators = new ArrayDeque<Iterator<ExpressionNode>>();
+			nodes.push(this);
+			while(!nodes.isEmpty())
 			{
-				int i = 0;
-				while(i < _children.size())
+				ExpressionNode node = nodes.pop();
+				boolean flattened = false;
+				for(ExpressionNode subExpr : node._children)
+				{
+					if(node.canAbsorb(subExpr))
+					{
+						flattened = true;
+						break;
+					}
+				}
+				if(!flattened)
 				{
-					ExpressionNode subExpr = _children.get(i);
-					subExpr.flatten();
-					if (_label.getText().equals(subExpr._label.getText())) 
+					for(ExpressionNode subExpr : node._children)
 					{
-						for(Expression child : subExpr.getChildren())
-						{
-							child.setParent((CompoundExpression)this);
-						}
-						_children.addAll(0, subExpr._children);
-						_horizontalBox.getChildren().addAll(0, ((HBox)subExpr.getNode()).getChildren());
-						_horizontalBox.getChildren().remove(subExpr.getNode());
-						_children.remove(subExpr);
+						nodes.push(subExpr);
 					}
-					i++;
-				}				
+					continue;
+				}
+
+				// Replace every same-operator child by its children, in order, down to any depth
+				final ArrayList<ExpressionNode> children = new ArrayList<ExpressionNode>();
+				iterators.push(node._children.iterator());
+				while(!iterators.isEmpty())
+				{
+					if(!iterators.peek().hasNext())
+					{
+						iterators.pop();
+						continue;
+					}
+					ExpressionNode subExpr = iterators.peek().next();
+					if(node.canAbsorb(subExpr))
+					{
+						iterators.push(subExpr._children.iterator());
+					}
+					else
+					{
+						children.add(subExpr);
+						nodes.push(subExpr);
+					}
+				}
+				node._children.clear();
+				for(ExpressionNode child : children)
+				{
+					node.addChild(child);
+				}
+				if(node.hasView())
+				{
+					node._view.rebuild();
+				}
 			}
 		}
+
+		/**
+		 * @return Return true if flatten replaces the specified child of this ExpressionNode by its children.
+		 */
+		private boolean canAbsorb(ExpressionNode subExpr)
+		{
+			return !(subExpr instanceof ParentheticalExpression) && subExpr._children.size() > 0 && getData().equals(subExpr.getData());
+		}
+
+	/**
+	 * Structural equality: the same kind of expression with the same data and equal children in the same
+	 * order. Trees with different hash codes are told apart in constant time once their hash codes are
+	 * cached; otherwise both trees are walked with explicit stacks.
+	 * @param object the object to compare with
+	 * @return true if the object is an expression tree with the same structure
+	 */
+
+	public boolean equals(Object object)
+	{
+		if(this == object)
+		{
+			return true;
+		}
+		if(!(object instanceof ExpressionNode) || hashCode() != object.hashCode())
+		{
+			return false;
+		}
+		final ArrayDeque<ExpressionNode> left = new ArrayDeque<ExpressionNode>(), right = new ArrayDeque<ExpressionNode>();
+		left.push(this);
+		right.push((ExpressionNode)object);
+		while(!left.isEmpty())
+		{
+			ExpressionNode x = left.pop(), y = right.pop();
+			if(x == y)
+			{
+				continue;
+			}
+			if(x._children.size() != y._children.size() || SharedExpression.kindOf(x) != SharedExpression.kindOf(y) || !x.getData().equals(y.getData()))
+			{
+				return false;
+			}
+			for(int i = 0; i < x._children.size(); i++)
+			{
+				left.push(x._children.get(i));
+				right.push(y._children.get(i));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the structural hash code, which is the same as that of the SharedExpression with the same
+	 * structure. It is cached, and computed again only for the subtrees that changed since.
+	 * @return the hash code
+	 */
+
+	public int hashCode()
+	{
+		updateHashCodes();
+		return _hashCode;
+	}
+
+	public int commutativeHashCode()
+	{
+		updateHashCodes();
+		return _commutativeHashCode;
+	}
+
+	/**
+	 * Compares the commutative hash codes first and, if they are equal, the canonical forms of both trees
+	 * by identity. Once both canonical forms are cached, a comparison takes constant time.
+	 */
+
+	public boolean equalsIgnoringOrder(Expression expression)
+	{
+		if(this == expression)
+		{
+			return true;
+		}
+		if(!(expression instanceof ExpressionNode) || commutativeHashCode() != expression.commutativeHashCode())
+		{
+			return false;
+		}
+		return getCanonicalForm() == ((ExpressionNode)expression).getCanonicalForm();
+	}
+
+	/**
+	 * Returns the canonical form of this subtree: a SharedExpression with the same structure, except that
+	 * the operands of every sum and product are sorted by SharedExpression.STRUCTURAL_ORDER. Canonical
+	 * forms are shared by all trees, so two subtrees are equal under commutativity exactly when their
+	 * canonical forms are the same object, e.g. for deduplicating with an IdentityHashMap. The form is
+	 * cached like the hash codes and built again only for the subtrees that changed since.
+	 * @return the canonical form
+	 */
+
+	public SharedExpression getCanonicalForm()
+	{
+		if(_canonicalForm != null)
+		{
+			return _canonicalForm;
+		}
+		final ArrayList<ExpressionNode> outdated = collectOutdated(true);
+		for(int i = outdated.size() - 1; i >= 0; i--)
+		{
+			ExpressionNode node = outdated.get(i);
+			int kind = SharedExpression.kindOf(node);
+			SharedExpression[] children = new SharedExpression[node._children.size()];
+			for(int j = 0; j < children.length; j++)
+			{
+				children[j] = node._children.get(j)._canonicalForm;
+			}
+			if(kind == SharedExpression.ADDITIVE || kind == SharedExpression.MULTIPLICATIVE)
+			{
+				Arrays.sort(children, SharedExpression.STRUCTURAL_ORDER);
+			}
+			node._canonicalForm = internCanonicalForm(new SharedExpression(kind, node.getData(), children));
+		}
+		return _canonicalForm;
+	}
+
+	/**
+	 * Returns the shared canonical form that is equal to the specified one, which becomes the shared one if
+	 * there is none yet. Its children must be shared canonical forms, so finding it compares them by identity.
+	 */
+
+	private static SharedExpression internCanonicalForm(SharedExpression form)
+	{
+		for(Reference<? extends SharedExpression> dropped = _droppedCanonicalForms.poll(); dropped != null; dropped = _droppedCanonicalForms.poll())
+		{
+			_canonicalForms.remove(dropped);
+		}
+		final CanonicalFormReference reference = new CanonicalFormReference(form);
+		while(true)
+		{
+			CanonicalFormReference existing = _canonicalForms.putIfAbsent(reference, reference);
+			if(existing == null)
+			{
+				return form;
+			}
+			SharedExpression shared = existing.get();
+			if(shared != null)
+			{
+				return shared;
+			}
+			// The equal form was dropped after it was found; replace its entry
+			_canonicalForms.remove(existing, existing);
+		}
+	}
+
+	/**
+	 * A weak reference to a canonical form that is a key of _canonicalForms. It keeps the hash code of the
+	 * form, and equals the reference to an equal form as long as both forms are still referenced. A reference
+	 * whose form was dropped only equals itself, so its entry can still be removed.
+	 */
+	private static class CanonicalFormReference extends WeakReference<SharedExpression>
+	{
+		private final int _hashCode;
+
+		CanonicalFormReference(SharedExpression form)
+		{
+			super(form, _droppedCanonicalForms);
+			_hashCode = form.hashCode();
+		}
+
+		public boolean equals(Object object)
+		{
+			if(this == object)
+			{
+				return true;
+			}
+			if(!(object instanceof CanonicalFormReference))
+			{
+				return false;
+			}
+			SharedExpression form = get();
+			return form != null && form.equals(((CanonicalFormReference)object).get());
+		}
+
+		public int hashCode()
+		{
+			return _hashCode;
+		}
+	}
+
+	/**
+	 * Marks the cached hash codes and canonical form of this ExpressionNode and its ancestors as out of date
+	 * after its children changed. Each of them is only valid when it is valid for all descendants, so the
+	 * walk stops at the first ancestor for which both are already out of date.
+	 */
+
+	private void invalidateHashCodes()
+	{
+		for(ExpressionNode node = this; node != null && (node._hashCodesValid || node._canonicalForm != null); node = (ExpressionNode)node._parent)
+		{
+			node._hashCodesValid = false;
+			node._canonicalForm = null;
+		}
+	}
+
+	/**
+	 * Collects the nodes of this subtree whose hash codes (or canonical form) are out of date, in pre-order,
+	 * so that every parent comes before its children. Only out-of-date nodes have out-of-date children.
+	 */
+
+	private ArrayList<ExpressionNode> collectOutdated(boolean canonicalForms)
+	{
+		final ArrayList<ExpressionNode> outdated = new ArrayList<ExpressionNode>();
+		final ArrayDeque<ExpressionNode> nodes = new ArrayDeque<ExpressionNode>();
+		nodes.push(this);
+		while(!nodes.isEmpty())
+		{
+			ExpressionNode node = nodes.pop();
+			outdated.add(node);
+			for(ExpressionNode child : node._children)
+			{
+				if(canonicalForms ? child._canonicalForm == null : !child._hashCodesValid)
+				{
+					nodes.push(child);
+				}
+			}
+		}
+		return outdated;
+	}
+
+	/**
+	 * Computes the hash codes of every node in this subtree whose hash codes are out of date, children
+	 * before their parents.
+	 */
+
+	private void updateHashCodes()
+	{
+		if(_hashCodesValid)
+		{
+			return;
+		}
+		final ArrayList<ExpressionNode> outdated = collectOutdated(false);
+		for(int i = outdated.size() - 1; i >= 0; i--)
+		{
+			ExpressionNode node = outdated.get(i);
+			int kind = SharedExpression.kindOf(node);
+			int hashCode = 31 * kind + node.getData().hashCode();
+			int orderedHashCode = hashCode, unorderedHashCode = 0;
+			for(ExpressionNode child : node._children)
+			{
+				hashCode = 31 * hashCode + child._hashCode;
+				orderedHashCode = 31 * orderedHashCode + child._commutativeHashCode;
+				unorderedHashCode += mix(child._commutativeHashCode);
+			}
+			node._hashCode = hashCode;
+			// The operands of + and * are combined with a sum, which does not depend on their order
+			node._commutativeHashCode = kind == SharedExpression.ADDITIVE || kind == SharedExpression.MULTIPLICATIVE
+				? 31 * (31 * kind + node.getData().hashCode()) + unorderedHashCode : orderedHashCode;
+			node._hashCodesValid = true;
+		}
+	}
+
+	/**
+	 * Spreads the bits of a hash code (the finalizer of MurmurHash3), so sums of hash codes rarely collide.
+	 */
+
+	private static int mix(int hashCode)
+	{
+		hashCode ^= hashCode >>> 16;
+		hashCode *= 0x85ebca6b;
+		hashCode ^= hashCode >>> 13;
+		hashCode *= 0xc2b2ae35;
+		return hashCode ^ (hashCode >>> 16);
+	}
 }
@@ -0,0 +1,284 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.layout.Border;
+import javafx.scene.layout.BorderStroke;
+import javafx.scene.layout.BorderStrokeStyle;
+import javafx.scene.layout.BorderWidths;
+import javafx.scene.layout.CornerRadii;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.FontPosture;
+import javafx.scene.text.FontWeight;
+
+/**
+ * The JavaFX controls that show one ExpressionNode. The view is only created the first time the node's
+ * getNode() is called, so expressions that are never shown do not create any JavaFX objects.
+ * Literals are shown as a single label, parenthetical expressions as "(" child ")" and operator
+ * expressions as their children separated by the operator.
+ *
+ * All labels share one Font. HBoxes and Labels of views that are released (see ExpressionNode.releaseViews)
+ * are kept in a pool and handed out again to new views, so showing one expression after another does not
+ * create and discard all of their controls every time. Like all JavaFX controls, the pool must only be
+ * used on the JavaFX application thread.
+ *
+ * The borders and the ghost color that all views use are kept here rather than in Expression, so that
+ * the expression model can be parsed and changed without JavaFX on the classpath.
+ */
+
+public class ExpressionNodeView
+{
+	/**
+	 * Border for showing a focused expression
+	 */
+	public static final Border RED_BORDER = new Border(
+		new BorderStroke(Color.RED, BorderStrokeStyle.SOLID, CornerRadii.EMPTY, BorderWidths.DEFAULT)
+	);
+
+	/**
+	 * Border for showing a non-focused expression
+	 */
+	public static final Border NO_BORDER = null;
+
+	/**
+	 * Color used for a "ghosted" expression
+	 */
+	public static final Color GHOST_COLOR = Color.LIGHTGREY;
+
+	/**
+	 * Largest number of unused HBoxes and Labels that are kept for reuse.
+	 */
+	private static final int MAX_POOLED_BOXES = 10000, MAX_POOLED_LABELS = 20000;
+
+	private static final ArrayDeque<HBox> _unusedBoxes = new ArrayDeque<HBox>();
+	private static final ArrayDeque<Label> _unusedLabels = new ArrayDeque<Label>();
+	private static Font _font;
+
+	private final ExpressionNode _expression;
+	private final HBox _horizontalBox;
+	private final ArrayList<Label> _ownLabels = new ArrayList<Label>();
+	private Label _label;
+
+	public ExpressionNodeView(ExpressionNode expression)
+	{
+		_expression = expression;
+		final HBox horizontalBox = _unusedBoxes.poll();
+		_horizontalBox = horizontalBox != null ? horizontalBox : new HBox();
+		rebuild();
+	}
+
+	/**
+	 * @return the font used for all expressions, created the first time it is needed
+	 */
+	public static Font getFont()
+	{
+		if(_font == null)
+		{
+			_font = Font.font("Arial", FontWeight.BOLD, FontPosture.REGULAR, 30);
+		}
+		return _font;
+	}
+
+	/**
+	 * Returns a Label showing the specified text in the font used for all expressions, reusing an
+	 * unused Label if there is one.
+	 * @param text the text of the label
+	 * @return the Label
+	 */
+	public static Label createLabel(String text)
+	{
+		Label label = _unusedLabels.poll();
+		if(label == null)
+		{
+			label = new Label();
+			label.setFont(getFont());
+		}
+		label.setText(text);
+		return label;
+	}
+
+	/**
+	 * Gives a Label that is no longer shown back to the pool.
+	 * @param label a Label from createLabel that has been removed from its parent
+	 */
+	public static void releaseLabel(Label label)
+	{
+		if(_unusedLabels.size() < MAX_POOLED_LABELS)
+		{
+			label.setTextFill(Color.BLACK);
+			label.setVisible(true);
+			label.setViewOrder(0);
+			label.relocate(0, 0);
+			_unusedLabels.push(label);
+		}
+	}
+
+	/**
+	 * Gives the HBox and the Labels of this view back to the pool. The view must not be used afterwards.
+	 * The HBoxes of the children are only removed from this HBox; they are released by their own views.
+	 */
+	public void release()
+	{
+		_horizontalBox.getChildren().clear();
+		releaseOwnLabels();
+		if(_horizontalBox.getParent() instanceof Pane)
+		{
+			((Pane)_horizontalBox.getParent()).getChildren().remove(_horizontalBox);
+		}
+		if(_unusedBoxes.size() < MAX_POOLED_BOXES)
+		{
+			_horizontalBox.setBorder(NO_BORDER);
+			_horizontalBox.setEffect(null);
+			_horizontalBox.setTranslateX(0);
+			_horizontalBox.setTranslateY(0);
+			_horizontalBox.relocate(0, 0);
+			_unusedBoxes.push(_horizontalBox);
+		}
+	}
+
+	private void releaseOwnLabels()
+	{
+		for(Label label : _ownLabels)
+		{
+			releaseLabel(label);
+		}
+		_ownLabels.clear();
+	}
+
+	/**
+	 * Creates a Label that belongs to this view and is released with it.
+	 */
+	private Label createOwnLabel(String text)
+	{
+		Label label = createLabel(text);
+		_ownLabels.add(label);
+		return label;
+	}
+
+	/**
+	 * @return the HBox that holds all the controls of the expression
+	 */
+	public Node getNode()
+	{
+		return _horizontalBox;
+	}
+
+	/**
+	 * @return the label of the expression: the literal itself, the first operator or the open parenthesis
+	 */
+	public Label getLabel()
+	{
+		return _label;
+	}
+
+	/**
+	 * Refills the HBox from the expression's current children, e.g. after they were added or flattened.
+	 */
+	public void rebuild()
+	{
+		List<Node> nodes = _horizontalBox.getChildren();
+		nodes.clear();
+		releaseOwnLabels();
+		List<ExpressionNode> children = _expression.getChildren();
+		if(_expression instanceof ParentheticalExpression)
+		{
+			_label = createOwnLabel("(");
+			nodes.add(_label);
+			for(ExpressionNode child : children)
+			{
+				nodes.add(child.getNode());
+			}
+			nodes.add(createOwnLabel(")"));
+		}
+		else if(children.isEmpty())
+		{
+			_label = createOwnLabel(_expression.getData());
+			nodes.add(_label);
+		}
+		else
+		{
+			_label = null;
+			for(ExpressionNode child : children)
+			{
+				if(!nodes.isEmpty())
+				{
+					Label operatorLabel = createOwnLabel(_expression.getData());
+					if(_label == null)
+					{
+						_label = operatorLabel;
+					}
+					nodes.add(operatorLabel);
+				}
+				nodes.add(child.getNode());
+			}
+		}
+	}
+
+	/**
+	 * Returns the position of a child's node among the controls in the HBox.
+	 * @param childIndex the index of the child in the expression
+	 * @return the index of the child's node in the HBox
+	 */
+	public int getNodeIndexOfChild(int childIndex)
+	{
+		return _expression instanceof ParentheticalExpression ? childIndex + 1 : 2 * childIndex;
+	}
+
+	/**
+	 * Moves the node of a child to another position in the HBox, as if the child was removed and
+	 * inserted again. Operator labels all look the same, so only one of them has to move along.
+	 * @param fromChildIndex the index of the child before the move
+	 * @param toChildIndex the index of the child after the move
+	 */
+	public void moveChild(int fromChildIndex, int toChildIndex)
+	{
+		if(fromChildIndex == toChildIndex)
+		{
+			return;
+		}
+		List<Node> nodes = _horizontalBox.getChildren();
+		int fromIndex = getNodeIndexOfChild(fromChildIndex);
+		Node childNode = nodes.remove(fromIndex);
+		if(_expression instanceof ParentheticalExpression)
+		{
+			nodes.add(getNodeIndexOfChild(toChildIndex), childNode);
+			return;
+		}
+		// Take along the operator after the child, or the one before it if the child was the last one
+		Node operatorLabel = nodes.remove(fromIndex < nodes.size() ? fromIndex : fromIndex - 1);
+		if(toChildIndex == 0)
+		{
+			nodes.add(0, childNode);
+			nodes.add(1, operatorLabel);
+		}
+		else
+		{
+			nodes.add(2 * toChildIndex - 1, operatorLabel);
+			nodes.add(2 * toChildIndex, childNode);
+		}
+	}
+
+	/**
+	 * Swaps the nodes of two children in the HBox.
+	 * @param firstChildIndex the index of the first child in the expression
+	 * @param secondChildIndex the index of the second child in the expression
+	 */
+	public void swapChildren(int firstChildIndex, int secondChildIndex)
+	{
+		List<Node> nodes = _horizontalBox.getChildren();
+		int firstIndex = getNodeIndexOfChild(firstChildIndex);
+		int secondIndex = getNodeIndexOfChild(secondChildIndex);
+		Node firstNode = nodes.get(firstIndex);
+		Node secondNode = nodes.get(secondIndex);
+		// A node can only appear once in the list, so park a placeholder while swapping
+		nodes.set(firstIndex, new Region());
+		nodes.set(secondIndex, firstNode);
+		nodes.set(firstIndex, secondNode);
+	}
+}
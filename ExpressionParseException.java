@@ -1,5 +1,23 @@
 class ExpressionParseException extends Exception {
+	private final int _offset;
+
 	public ExpressionParseException (String message) {
+		this(message, -1);
+	}
+
+	/**
+	 * @param message the detail message
+	 * @param offset the index of the character at which parsing failed
+	 */
+	public ExpressionParseException (String message, int offset) {
 		super(message);
+		_offset = offset;
+	}
+
+	/**
+	 * @return the index of the character at which parsing failed, or -1 if it is not known
+	 */
+	public int getOffset () {
+		return _offset;
 	}
 }
@@ -7,4 +7,17 @@ interface ExpressionParser {
 	 * @return the Expression object representing the parsed expression tree
 	 */
 	Expression parse (String str, boolean withJavaFXControls) throws ExpressionParseException;
+
+	/**
+	 * Attempts to create an expression tree -- flattened as much as possible -- from the characters
+	 * between start and end of the specified input, without JavaFX controls.
+	 * Throws a ExpressionParseException if the characters cannot be parsed.
+	 * @param input the characters to parse
+	 * @param start the index of the first character to parse
+	 * @param end the index after the last character to parse
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	default Expression parse (CharSequence input, int start, int end) throws ExpressionParseException {
+		return parse(input.subSequence(start, end).toString(), false);
+	}
 }
@@ -3,6 +3,13 @@ import org.junit.Before;
 import org.junit.Test;
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
 
 /**
  * Code to test Project 5; you should definitely add more tests!
@@ -103,4 +110,602 @@ public class ExpressionParserPartialTester {
 		final String expressionStr = "()()";
 		_parser.parse(expressionStr, false);
 	}
+
+	@Test
+	/**
+	 * Verifies that an operator after a parenthetical expression keeps its precedence.
+	 */
+	public void testExpressionAfterParenthetical () throws ExpressionParseException {
+		final String expressionStr = "x+(a)*b+c";
+		final String parseTreeStr = "+\n\tx\n\t·\n\t\t()\n\t\t\ta\n\t\tb\n\tc\n";
+		assertEquals(parseTreeStr, _parser.parse(expressionStr, false).convertToString(0).replace('*', '·'));
+	}
+
+	@Test(expected = ExpressionParseException.class) 
+	/**
+	 * Verifies that characters after a closing parenthesis are not ignored.
+	 */
+	public void testException4 () throws ExpressionParseException {
+		final String expressionStr = "(a)b";
+		_parser.parse(expressionStr, false);
+	}
+
+	@Test
+	/**
+	 * Verifies that no JavaFX controls are created when parsing without them.
+	 */
+	public void testParseWithoutJavaFXControls () throws ExpressionParseException {
+		final ExpressionNode expression = (ExpressionNode) _parser.parse("2*x+(y+1)", false);
+		assertFalse(expression.hasView());
+		for (ExpressionNode child : expression.getChildren()) {
+			assertFalse(child.hasView());
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that an expression can be parsed from a part of a CharBuffer.
+	 */
+	public void testParseCharSequence () throws ExpressionParseException {
+		final CharBuffer buffer = CharBuffer.wrap("a+b;4 * (z + 5*x);c");
+		final String parseTreeStr = "·\n\t4\n\t()\n\t\t+\n\t\t\tz\n\t\t\t·\n\t\t\t\t5\n\t\t\t\tx\n";
+		assertEquals(parseTreeStr, _parser.parse(buffer, 4, 17).convertToString(0).replace('*', '·'));
+	}
+
+	@Test
+	/**
+	 * Verifies that a parse error reports the offset of the character that could not be parsed.
+	 */
+	public void testExceptionOffset () {
+		try {
+			_parser.parse("1 + 2 + $x", false);
+			fail();
+		} catch (ExpressionParseException epe) {
+			assertEquals(8, epe.getOffset());
+		}
+		try {
+			_parser.parse("(a)b", false);
+			fail();
+		} catch (ExpressionParseException epe) {
+			assertEquals(3, epe.getOffset());
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that the packrat parser builds the same trees as the SimpleExpressionParser, even with a tiny memo table.
+	 */
+	public void testPackratParser () throws ExpressionParseException {
+		final String[] expressionStrs = { "a+b", "4*(z+5*x)", "(x+(x)+(x+x)+x)", "x+(a)*b+c", "((((((a+b)*c)+d)*e))*(f+(g*(h))))" };
+		final ExpressionParser[] packratParsers = { new PackratExpressionParser(), new PackratExpressionParser(8) };
+		for (String expressionStr : expressionStrs) {
+			for (ExpressionParser packratParser : packratParsers) {
+				assertEquals(_parser.parse(expressionStr, false).convertToString(0), packratParser.parse(expressionStr, false).convertToString(0));
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that the packrat parser handles deeply nested expressions without running out of stack,
+	 * and matches long expressions with a constant number of rule evaluations per token.
+	 */
+	public void testPackratParserDeepAndLong () throws ExpressionParseException {
+		final StringBuilder nested = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			nested.append('(');
+		}
+		nested.append("a+b*c");
+		for (int i = 0; i < 10000; i++) {
+			nested.append(')');
+		}
+		final ExpressionParser[] packratParsers = { new PackratExpressionParser(), new PackratExpressionParser(8) };
+		for (ExpressionParser packratParser : packratParsers) {
+			assertEquals(_parser.parse(nested.toString(), false), packratParser.parse(nested.toString(), false));
+			try {
+				packratParser.parse(nested.substring(1), false);
+				fail("Expected an ExpressionParseException");
+			} catch (ExpressionParseException epe) {
+			}
+		}
+
+		final StringBuilder terms = new StringBuilder("0");
+		for (int i = 1; i < 5000; i++) {
+			terms.append(i % 3 == 0 ? '*' : '+').append(i % 10 == 0 ? "(x+y)" : Integer.toString(i));
+		}
+		for (ExpressionParser packratParser : packratParsers) {
+			assertEquals(_parser.parse(terms.toString(), false), packratParser.parse(terms.toString(), false));
+		}
+		final int numberOfTokens = 5000 * 2 - 1 + 500 * 4;
+		assertTrue(new PackratExpressionParser().countEvaluations(terms, 0, terms.length()) < 4 * numberOfTokens);
+	}
+
+	@Test
+	/**
+	 * Verifies that the caching parser answers repeated expressions from its cache with independent copies.
+	 */
+	public void testCachingParser () throws ExpressionParseException {
+		final CachingExpressionParser cachingParser = new CachingExpressionParser(_parser, 2);
+		final Expression first = cachingParser.parse("2*x+3", false);
+		final Expression second = cachingParser.parse("2 * x + 3", false);
+		assertNotSame(first, second);
+		assertEquals(first.convertToString(0), second.convertToString(0));
+		assertEquals(1, cachingParser.getHitCount());
+		assertEquals(1, cachingParser.getMissCount());
+		cachingParser.parse("a", false);
+		cachingParser.parse("b", false);
+		assertEquals(1, cachingParser.getEvictionCount());
+		assertEquals(2, cachingParser.size());
+		try {
+			cachingParser.parse("1 + 2 + $x", false);
+			fail("Expected an ExpressionParseException");
+		} catch (ExpressionParseException epe) {
+			// The offset is in the input, not in the expression without spaces
+			assertEquals(8, epe.getOffset());
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that interning shares equal subtrees and that the shared tree converts back to the same tree.
+	 */
+	public void testInterning () throws ExpressionParseException {
+		final ExpressionInterner interner = new ExpressionInterner();
+		final Expression expression = _parser.parse("2*x+(a+b)+2*x", false);
+		final SharedExpression shared = interner.intern(expression);
+		assertSame(shared.getChild(0), shared.getChild(2));
+		assertSame(shared.getChild(1), interner.intern(_parser.parse("(a+b)", false)));
+		assertEquals(8, interner.size());
+		assertEquals(expression.convertToString(0), shared.toExpression().convertToString(0));
+	}
+
+	@Test
+	/**
+	 * Verifies that the compact tree prints, copies and flattens like the ExpressionNode tree, on and off the heap.
+	 */
+	public void testCompactExpressionTree () throws ExpressionParseException {
+		final Expression expression = _parser.parse("(x+(x)+(x+x)+x)*13", false);
+		for (boolean offHeap : new boolean[] { false, true }) {
+			final CompactExpressionTree tree = CompactExpressionTree.of(expression, offHeap);
+			assertEquals(expression.convertToString(0), tree.convertToString(0));
+			assertEquals(expression.convertToString(0), tree.deepCopy().convertToString(0));
+			assertEquals(expression.convertToString(0), tree.toExpression().convertToString(0));
+		}
+
+		// (a+b)+(c*d*e) without the parentheses, as a tree that is not flattened yet
+		final CompoundExpression sum = new AdditiveExpression("+");
+		final CompoundExpression product = new MultiplicativeExpression("*");
+		sum.addSubexpression(_parser.parse("a+b", false));
+		sum.addSubexpression(product);
+		product.addSubexpression(_parser.parse("c*d", false));
+		product.addSubexpression(new LiteralExpression("e"));
+		final CompactExpressionTree tree = CompactExpressionTree.of(sum, false);
+		tree.flatten();
+		assertEquals("+\n\ta\n\tb\n\t*\n\t\tc\n\t\td\n\t\te\n", tree.convertToString(0));
+		assertEquals(tree.convertToString(0), tree.deepCopy().convertToString(0));
+	}
+
+	@Test
+	/**
+	 * Verifies that a compiled expression evaluates to the right value for different variable values.
+	 */
+	public void testCompiledExpression () throws ExpressionParseException {
+		final CompiledExpression compiledExpression = ExpressionCompiler.compile(_parser.parse("2*x+3*(y+1)+4*5", false));
+		final double[] variables = new double[ExpressionCompiler.NUMBER_OF_VARIABLES];
+		variables['x' - 'a'] = 4;
+		variables['y' - 'a'] = 5;
+		assertEquals(46, compiledExpression.evaluate(variables), 0);
+		variables['x' - 'a'] = -1;
+		assertEquals(36, compiledExpression.evaluate(variables), 0);
+	}
+
+	@Test
+	/**
+	 * Verifies that batch evaluation over columns matches row-by-row evaluation, on one thread and in parallel.
+	 */
+	public void testBatchEvaluator () throws ExpressionParseException {
+		final Expression expression = _parser.parse("2*x+3*(y+1)*x+4*5", false);
+		final CompiledExpression compiledExpression = ExpressionCompiler.compile(expression);
+		final BatchEvaluator batchEvaluator = new BatchEvaluator(expression);
+		final int numberOfRows = 3 * BatchEvaluator.ROWS_PER_TASK + 17;
+		final double[][] columns = new double[ExpressionCompiler.NUMBER_OF_VARIABLES][];
+		columns['x' - 'a'] = new double[numberOfRows];
+		columns['y' - 'a'] = new double[numberOfRows];
+		for (int row = 0; row < numberOfRows; row++) {
+			columns['x' - 'a'][row] = row % 101;
+			columns['y' - 'a'][row] = row % 7 - 3;
+		}
+		final double[] output = new double[numberOfRows], parallelOutput = new double[numberOfRows];
+		batchEvaluator.evaluate(columns, output, numberOfRows);
+		batchEvaluator.evaluateParallel(columns, parallelOutput, numberOfRows);
+		final double[] variables = new double[ExpressionCompiler.NUMBER_OF_VARIABLES];
+		for (int row = 0; row < numberOfRows; row++) {
+			variables['x' - 'a'] = columns['x' - 'a'][row];
+			variables['y' - 'a'] = columns['y' - 'a'][row];
+			assertEquals(compiledExpression.evaluate(variables), output[row], 0);
+			assertEquals(output[row], parallelOutput[row], 0);
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that ExpressionWriter writes the tree format and infix text, also for deeply nested expressions.
+	 */
+	public void testExpressionWriter () throws ExpressionParseException, IOException {
+		final Expression expression = _parser.parse("2*x + 3*(y+1)*(z) + 4", false);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ExpressionWriter.writeTree(expression, Channels.newChannel(bytes));
+		assertEquals(expression.convertToString(0), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals("2*x+3*(y+1)*(z)+4", ExpressionWriter.toInfix(expression));
+
+		final StringBuilder nested = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			nested.append('(');
+		}
+		nested.append("a+b");
+		for (int i = 0; i < 100000; i++) {
+			nested.append(')');
+		}
+		assertEquals(nested.toString(), ExpressionWriter.toInfix(_parser.parse(nested.toString(), false)));
+	}
+
+	@Test
+	/**
+	 * Verifies that trees written to a binary archive are read back unchanged.
+	 */
+	public void testExpressionArchive () throws ExpressionParseException, IOException {
+		final String[] expressionStrs = { "a", "2*x+3*(y+1)*(z)+4", "(((a+b)))*c", "foo + foo*foo" };
+		final List<Expression> expressions = new ArrayList<Expression>();
+		for (String expressionStr : expressionStrs) {
+			expressions.add(_parser.parse(expressionStr, false));
+		}
+		final Path path = Files.createTempFile("expressions", ".bin");
+		try {
+			assertEquals(expressions.size(), ExpressionArchive.write(path, expressions));
+			try (ExpressionArchive archive = ExpressionArchive.open(path)) {
+				assertEquals(expressions.size(), archive.size());
+				for (int i = expressions.size() - 1; i >= 0; i--) {
+					assertEquals(expressions.get(i).convertToString(0), archive.get(i).convertToString(0));
+				}
+			}
+		} finally {
+			Files.delete(path);
+		}
+		final byte[] encoded = ExpressionCodec.encode(expressions.get(1));
+		try {
+			ExpressionCodec.decode(ByteBuffer.wrap(encoded, 0, encoded.length - 1));
+			fail("A truncated encoding should be rejected");
+		} catch (IllegalArgumentException iae) { }
+		// Counts and lengths far beyond the end of the buffer are rejected before allocating
+		final byte[][] corrupt = { { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 },
+			{ 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 'a' },
+			{ 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 } };
+		for (byte[] bytes : corrupt) {
+			try {
+				ExpressionCodec.decode(ByteBuffer.wrap(bytes));
+				fail("A corrupt encoding should be rejected");
+			} catch (IllegalArgumentException iae) { }
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that flatten and deepCopy work on trees that are far too deep for recursion, and that
+	 * flattening a long chain of nested operators takes linear time.
+	 */
+	public void testDeepTrees () throws ExpressionParseException {
+		final int depth = 200000;
+		final StringBuilder nested = new StringBuilder();
+		for (int i = 0; i < depth; i++) {
+			nested.append('(');
+		}
+		nested.append("a+b");
+		for (int i = 0; i < depth; i++) {
+			nested.append(')');
+		}
+		final Expression expression = _parser.parse(nested.toString(), false);
+		final Expression copy = expression.deepCopy();
+		copy.flatten();
+		assertEquals(nested.toString(), ExpressionWriter.toInfix(copy));
+		final double[] variables = new double[ExpressionCompiler.NUMBER_OF_VARIABLES];
+		variables[0] = 1;
+		variables[1] = 2;
+		assertEquals(3, ExpressionCompiler.compile(expression).evaluate(variables), 0);
+		final double[][] columns = new double[ExpressionCompiler.NUMBER_OF_VARIABLES][];
+		columns[0] = new double[] { 1 };
+		columns[1] = new double[] { 2 };
+		final double[] output = new double[1];
+		new BatchEvaluator(expression).evaluate(columns, output, 1);
+		assertEquals(3, output[0], 0);
+
+		// ((((a+b)+c)+d)+...) without parentheses, as a parser that does not flatten would build it
+		CompoundExpression chain = new AdditiveExpression("+");
+		chain.addSubexpression(new LiteralExpression("x0"));
+		for (int i = 1; i < depth; i++) {
+			final Expression literal = new LiteralExpression("x" + i);
+			chain.addSubexpression(literal);
+			literal.setParent(chain);
+			final CompoundExpression parent = new AdditiveExpression("+");
+			parent.addSubexpression(chain);
+			chain.setParent(parent);
+			chain = parent;
+		}
+		chain.addSubexpression(new LiteralExpression("y"));
+		final Expression chainCopy = chain.deepCopy();
+		chainCopy.flatten();
+		assertEquals(depth + 1, ((CompoundExpressionNode) chainCopy).getSubexpressions().size());
+		assertEquals("x0", ((CompoundExpressionNode) chainCopy).getSubexpressions().get(0).getData());
+		assertSame(chainCopy, ((CompoundExpressionNode) chainCopy).getSubexpressions().get(depth).getParent());
+
+		// Two deep shared trees that were built separately, so no subtree of one is in the other
+		SharedExpression left = new SharedExpression(SharedExpression.LITERAL, "a", new SharedExpression[0]);
+		SharedExpression right = new SharedExpression(SharedExpression.LITERAL, "a", new SharedExpression[0]);
+		for (int i = 0; i < depth; i++) {
+			left = new SharedExpression(SharedExpression.PARENTHETICAL, "()", new SharedExpression[] { left });
+			right = new SharedExpression(SharedExpression.PARENTHETICAL, "()", new SharedExpression[] { right });
+		}
+		assertEquals(left, right);
+	}
+
+	@Test
+	/**
+	 * Verifies that moveTo and swapWith rearrange subexpressions and keep their indexes in their parent.
+	 */
+	public void testMoveTo () throws ExpressionParseException {
+		final ExpressionNode expression = (ExpressionNode) _parser.parse("a+b*c+d+e", false);
+		expression.getChildren().get(1).moveTo(3);
+		assertEquals("a+d+e+b*c", ExpressionWriter.toInfix(expression));
+		expression.getChildren().get(3).moveTo(0);
+		assertEquals("b*c+a+d+e", ExpressionWriter.toInfix(expression));
+		for (int i = 0; i < expression.getChildren().size(); i++) {
+			assertEquals(i, expression.getChildren().get(i).getIndexInParent());
+		}
+		expression.getChildren().get(0).swapWith(expression.getChildren().get(3));
+		assertEquals("e+a+d+b*c", ExpressionWriter.toInfix(expression));
+		assertEquals(3, expression.getChildren().get(3).getIndexInParent());
+	}
+
+	@Test
+	/**
+	 * Verifies that ExpressionLayout places the tokens, hit-tests children and follows moves.
+	 */
+	public void testExpressionLayout () throws ExpressionParseException {
+		final ExpressionNode expression = (ExpressionNode) _parser.parse("2*x+(a+b)", false);
+		final ExpressionLayout layout = new ExpressionLayout(expression, new TextMetrics(10, 30));
+		assertEquals(9, layout.getNumberOfTokens());
+		assertEquals(90, layout.getWidth(), 0);
+		assertEquals(0, layout.findChildAt(expression, 15));
+		assertEquals(-1, layout.findChildAt(expression, 35));
+		assertEquals(1, layout.findChildAt(expression, 45));
+		final ExpressionNode parenthetical = expression.getChildren().get(1);
+		assertEquals(40, layout.getStartX(parenthetical), 0);
+		assertEquals(90, layout.getEndX(parenthetical), 0);
+
+		parenthetical.moveTo(0);
+		layout.update(expression);
+		final StringBuilder tokens = new StringBuilder();
+		for (int i = 0; i < layout.getNumberOfTokens(); i++) {
+			tokens.append(layout.getTokenText(i));
+			assertEquals(10 * i, layout.getTokenX(i), 0);
+		}
+		assertEquals("(a+b)+2*x", tokens.toString());
+		assertEquals(0, layout.getStartX(parenthetical), 0);
+		assertEquals(60, layout.getStartX(expression.getChildren().get(1)), 0);
+	}
+
+	@Test
+	/**
+	 * Verifies that ExpressionHistory creates a version per move that shares unchanged subtrees, and
+	 * that undo and redo replay the moves on the mutable tree.
+	 */
+	public void testExpressionHistory () throws ExpressionParseException {
+		final ExpressionNode expression = (ExpressionNode) _parser.parse("x*(a+b+c)*y", false);
+		final ExpressionHistory history = new ExpressionHistory(expression);
+		final ExpressionNode sum = expression.getChildren().get(1).getChildren().get(0);
+		sum.getChildren().get(0).moveTo(2);
+		history.recordMove(sum, 0, 2);
+		assertEquals("x*(b+c+a)*y", ExpressionWriter.toInfix(history.getCurrentVersion().toExpression()));
+		assertSame(history.getVersion(0).getChild(0), history.getVersion(1).getChild(0));
+		assertNotSame(history.getVersion(0).getChild(1), history.getVersion(1).getChild(1));
+
+		expression.getChildren().get(2).moveTo(0);
+		history.recordMove(expression, 2, 0);
+		assertEquals("y*x*(b+c+a)", ExpressionWriter.toInfix(history.getCurrentVersion().toExpression()));
+		assertSame(history.getVersion(1).getChild(1), history.getVersion(2).getChild(2));
+
+		assertSame(expression, history.undo(expression));
+		assertSame(sum, history.undo(expression));
+		assertEquals("x*(a+b+c)*y", ExpressionWriter.toInfix(expression));
+		assertNull(history.undo(expression));
+		assertSame(sum, history.redo(expression));
+		assertEquals("x*(b+c+a)*y", ExpressionWriter.toInfix(expression));
+		assertEquals(history.getCurrentVersion(), new ExpressionInterner().intern(expression));
+
+		sum.getChildren().get(2).moveTo(1);
+		history.recordMove(sum, 2, 1);
+		assertFalse(history.canRedo());
+		assertEquals(3, history.getNumberOfVersions());
+		assertEquals("x*(b+a+c)*y", ExpressionWriter.toInfix(history.getCurrentVersion().toExpression()));
+
+		// Undo and redo bring the tree in line with every version
+		while (history.canUndo()) {
+			history.undo(expression);
+			assertEquals(ExpressionWriter.toInfix(history.getCurrentVersion().toExpression()), ExpressionWriter.toInfix(expression));
+		}
+		while (history.canRedo()) {
+			history.redo(expression);
+			assertEquals(ExpressionWriter.toInfix(history.getCurrentVersion().toExpression()), ExpressionWriter.toInfix(expression));
+		}
+
+		// Equal operands are the same object in the versions, but undo and redo move the right child
+		final ExpressionNode duplicates = (ExpressionNode) _parser.parse("1+1+2", false);
+		final ExpressionHistory duplicatesHistory = new ExpressionHistory(duplicates);
+		final ExpressionNode two = duplicates.getChildren().get(2);
+		two.moveTo(0);
+		duplicatesHistory.recordMove(duplicates, 2, 0);
+		duplicatesHistory.undo(duplicates);
+		assertEquals("1+1+2", ExpressionWriter.toInfix(duplicates));
+		duplicatesHistory.redo(duplicates);
+		assertEquals("2+1+1", ExpressionWriter.toInfix(duplicates));
+		assertSame(two, duplicates.getChildren().get(0));
+		final ExpressionNode one = duplicates.getChildren().get(2);
+		one.moveTo(1);
+		duplicatesHistory.recordMove(duplicates, 2, 1);
+		duplicatesHistory.undo(duplicates);
+		duplicatesHistory.redo(duplicates);
+		assertSame(one, duplicates.getChildren().get(1));
+		duplicatesHistory.undo(duplicates);
+		duplicatesHistory.undo(duplicates);
+		assertEquals("1+1+2", ExpressionWriter.toInfix(duplicates));
+		assertSame(two, duplicates.getChildren().get(2));
+	}
+
+	@Test
+	/**
+	 * Verifies that simplify folds numbers, collects like terms, removes parentheses and sorts operands.
+	 */
+	public void testSimplify () throws ExpressionParseException {
+		final String[][] cases = {
+			{ "2*x+3*x", "5*x" },
+			{ "2*3+4", "10" },
+			{ "((a))", "a" },
+			{ "a+(b+c)", "a+b+c" },
+			{ "(b+a)*2*c", "2*c*(a+b)" },
+			{ "y*x+3+x*y*2", "3*x*y+3" },
+			{ "0*(a+b)+x*1", "x" },
+			{ "x+y+(y+x)", "2*x+2*y" }
+		};
+		for (String[] c : cases) {
+			assertEquals(c[1], ExpressionWriter.toInfix(_parser.parse(c[0], false).simplify()));
+		}
+
+		// Equal subtrees are simplified once
+		final ExpressionSimplifier simplifier = new ExpressionSimplifier();
+		simplifier.simplify(_parser.parse("(a+b)*(a+b)+(a+b)*(a+b)", false));
+		final int size = simplifier.size();
+		final Expression simplified = simplifier.simplify(_parser.parse("(b+a)*(a+b)", false));
+		assertEquals("(a+b)*(a+b)", ExpressionWriter.toInfix(simplified));
+		assertEquals(size + 3, simplifier.size());
+	}
+
+	@Test
+	/**
+	 * Verifies structural and commutative equality and that cached hash codes follow changes to the tree.
+	 */
+	public void testStructuralEquality () throws ExpressionParseException {
+		final Expression expression = _parser.parse("a+b*c+(d+e)", false);
+		final Expression reordered = _parser.parse("(e+d)+c*b+a", false);
+		assertEquals(expression, _parser.parse("a+b*c+(d+e)", false));
+		assertEquals(new ExpressionInterner().intern(expression).hashCode(), expression.hashCode());
+		assertNotEquals(expression, reordered);
+		assertTrue(expression.equalsIgnoringOrder(reordered));
+		assertEquals(expression.commutativeHashCode(), reordered.commutativeHashCode());
+		assertFalse(_parser.parse("a+b", false).equalsIgnoringOrder(_parser.parse("a*b", false)));
+		assertFalse(_parser.parse("(a+b)", false).equalsIgnoringOrder(_parser.parse("a+b", false)));
+		assertSame(((ExpressionNode) expression).getCanonicalForm(), ((ExpressionNode) reordered).getCanonicalForm());
+
+		final ExpressionNode sum = (ExpressionNode) _parser.parse("x+y+z", false);
+		final int hashCode = sum.hashCode();
+		sum.getChildren().get(0).swapWith(sum.getChildren().get(2));
+		assertNotEquals(hashCode, sum.hashCode());
+		assertEquals(_parser.parse("z+y+x", false), sum);
+		sum.getChildren().get(0).moveTo(2);
+		assertEquals(_parser.parse("y+x+z", false), sum);
+		final SharedExpression canonicalForm = sum.getCanonicalForm();
+		sum.getChildren().get(1).moveTo(0);
+		assertSame(canonicalForm, sum.getCanonicalForm());
+		assertTrue(sum.equalsIgnoringOrder(_parser.parse("z+x+y", false)));
+
+		final CompoundExpression inner = new AdditiveExpression("+");
+		inner.addSubexpression(new LiteralExpression("a"));
+		inner.addSubexpression(new LiteralExpression("b"));
+		final CompoundExpression unflattened = new AdditiveExpression("+");
+		unflattened.addSubexpression(inner);
+		unflattened.addSubexpression(new LiteralExpression("c"));
+		final Expression flattened = _parser.parse("a+b+c", false);
+		assertNotEquals(flattened, unflattened);
+		unflattened.flatten();
+		assertEquals(flattened, unflattened);
+	}
+
+	@Test
+	/**
+	 * Verifies that BulkExpressionParser parses every line of a file or stream, in order, and reports
+	 * the position of bad lines.
+	 */
+	public void testBulkExpressionParser () throws IOException {
+		final String text = "2*x+3\n\n  \na+(b\r\nx*y\r\n(c)";
+		final Path path = Files.createTempFile("expressions", ".txt");
+		try {
+			Files.write(path, text.getBytes(StandardCharsets.US_ASCII));
+			final BulkExpressionParser parser = new BulkExpressionParser(new SimpleExpressionParser(), 1);
+			final List<BulkExpressionParser.ParsedLine> lines = new ArrayList<BulkExpressionParser.ParsedLine>();
+			parser.parse(path, lines::add);
+			assertEquals(4, lines.size());
+			assertEquals("2*x+3", ExpressionWriter.toInfix(lines.get(0).getExpression()));
+			assertNull(lines.get(1).getExpression());
+			assertEquals(4, lines.get(1).getLineNumber());
+			assertEquals(10, lines.get(1).getOffset());
+			assertTrue(lines.get(1).getErrorOffset() >= 10);
+			assertEquals("x*y", ExpressionWriter.toInfix(lines.get(2).getExpression()));
+			assertEquals(6, lines.get(3).getLineNumber());
+
+			try (Stream<BulkExpressionParser.ParsedLine> stream = parser.stream(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)))) {
+				assertEquals(3, stream.filter(line -> line.getError() == null).count());
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that the parse time grows linearly with the number of terms, from 10 to 100,000 terms.
+	 * Every size is parsed 100,000 terms at a time (10,000 expressions of 10 terms, ..., one of 100,000
+	 * terms), and the fastest of several rounds counts, so timer resolution, JIT compilation and short
+	 * pauses do not matter. A parser that is quadratic takes about 100 times longer per term on 100,000
+	 * terms than on 1,000; the bound allows 10 times.
+	 */
+	public void testParseTimeIsLinear () throws ExpressionParseException {
+		final int[] numbersOfTerms = { 10, 1000, 100000 };
+		final String[] expressionStrs = new String[numbersOfTerms.length];
+		for (int i = 0; i < numbersOfTerms.length; i++) {
+			expressionStrs[i] = makeExpression(numbersOfTerms[i]);
+		}
+		final double[] nanosPerTerm = new double[numbersOfTerms.length];
+		Arrays.fill(nanosPerTerm, Double.MAX_VALUE);
+		for (int round = 0; round < 7; round++) {
+			for (int i = 0; i < numbersOfTerms.length; i++) {
+				final int repetitions = 100000 / numbersOfTerms[i];
+				final long start = System.nanoTime();
+				for (int repetition = 0; repetition < repetitions; repetition++) {
+					_parser.parse(expressionStrs[i], false);
+				}
+				nanosPerTerm[i] = Math.min(nanosPerTerm[i], (double) (System.nanoTime() - start) / 100000);
+			}
+		}
+		final double fastest = Math.min(nanosPerTerm[0], nanosPerTerm[1]);
+		assertTrue("Parsing 100000 terms took " + nanosPerTerm[2] + "ns per term, smaller expressions " + fastest + "ns",
+			nanosPerTerm[2] < 10 * fastest);
+	}
+
+	/**
+	 * Builds an expression with the specified number of terms that mixes sums, products and parentheses.
+	 * @param numberOfTerms the number of terms in the expression
+	 * @return the expression
+	 */
+	private static String makeExpression (int numberOfTerms) {
+		final StringBuilder stringBuilder = new StringBuilder();
+		for (int i = 0; i < numberOfTerms; i++) {
+			if (i > 0) {
+				stringBuilder.append(i % 3 == 0 ? '+' : '*');
+			}
+			if (i % 7 == 0) {
+				stringBuilder.append("(x+").append(i).append(')');
+			} else {
+				stringBuilder.append((char) ('a' + i % 26));
+			}
+		}
+		return stringBuilder.toString();
+	}
 }
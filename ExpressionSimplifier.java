@@ -0,0 +1,263 @@
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Simplifies expressions by rewriting them bottom-up into a canonical form:
+ * <ul>
+ * <li>numbers are folded: 2*3+4 becomes 10 (exactly, since literals are non-negative integers),</li>
+ * <li>like terms are collected: 2*x+3*x becomes 5*x, and terms that cancel to 0 disappear,</li>
+ * <li>parentheses are only kept around a sum that is a factor of a product: ((a)) becomes a and
+ * a+(b+c) becomes a+b+c, and nested sums and products are flattened along the way,</li>
+ * <li>the operands of + and * are sorted: the number comes first in a product and last in a sum,
+ * and everything else is ordered by its structure, so a+b and b+a simplify to the same tree.</li>
+ * </ul>
+ * The simplifier works on interned SharedExpressions and remembers the simplified form of every subtree
+ * it has seen, by structural hash, so a subtree that appears many times -- in one tree or across a
+ * corpus that is simplified with the same simplifier -- is simplified once. Trees are walked with
+ * explicit stacks and may be arbitrarily deep.
+ */
+
+public class ExpressionSimplifier
+{
+	private final ExpressionInterner _interner = new ExpressionInterner();
+	private final HashMap<SharedExpression, SharedExpression> _simplified = new HashMap<SharedExpression, SharedExpression>();
+
+	/**
+	 * Simplifies an expression.
+	 * @param expression the expression, which does not change
+	 * @return a new, simplified expression tree without JavaFX controls
+	 */
+	public Expression simplify(Expression expression)
+	{
+		return simplify(_interner.intern(expression)).toExpression();
+	}
+
+	/**
+	 * Simplifies a shared expression.
+	 * @param expression the expression
+	 * @return the simplified expression, interned by this simplifier
+	 */
+	public SharedExpression simplify(SharedExpression expression)
+	{
+		final SharedExpression root = _interner.intern(expression);
+		final ArrayDeque<SharedExpression> nodes = new ArrayDeque<SharedExpression>();
+		final ArrayDeque<Integer> nextChildren = new ArrayDeque<Integer>();
+		nodes.push(root);
+		nextChildren.push(0);
+		while(!nodes.isEmpty())
+		{
+			SharedExpression node = nodes.peek();
+			int nextChild = nextChildren.pop();
+			if(nextChild == 0 && _simplified.containsKey(node))
+			{
+				nodes.pop();
+				continue;
+			}
+			if(nextChild < node.getNumberOfChildren())
+			{
+				// Simplify the children first
+				nextChildren.push(nextChild + 1);
+				nodes.push(node.getChild(nextChild));
+				nextChildren.push(0);
+				continue;
+			}
+			nodes.pop();
+			SharedExpression simplified = rewrite(node);
+			_simplified.put(node, simplified);
+			_simplified.putIfAbsent(simplified, simplified);
+		}
+		final SharedExpression simplified = _simplified.get(root);
+		// A sum at the top needs no parentheses
+		return simplified.getKind() == SharedExpression.PARENTHETICAL ? simplified.getChild(0) : simplified;
+	}
+
+	/**
+	 * @return the number of distinct subtrees whose simplified form is remembered
+	 */
+	public int size()
+	{
+		return _simplified.size();
+	}
+
+	/**
+	 * Rewrites a node whose children have all been simplified.
+	 */
+	private SharedExpression rewrite(SharedExpression node)
+	{
+		switch(node.getKind())
+		{
+			case SharedExpression.ADDITIVE:
+				return rewriteSum(node);
+			case SharedExpression.MULTIPLICATIVE:
+				return rewriteProduct(node);
+			case SharedExpression.PARENTHETICAL:
+				// Parentheses are added again where a sum becomes a factor
+				return unwrap(_simplified.get(node.getChild(0)));
+			default:
+				return isNumber(node) ? number(new BigInteger(node.getData())) : node;
+		}
+	}
+
+	/**
+	 * Adds up the numbers and the coefficients of like terms.
+	 */
+	private SharedExpression rewriteSum(SharedExpression node)
+	{
+		BigInteger constant = BigInteger.ZERO;
+		final HashMap<SharedExpression, BigInteger> coefficients = new HashMap<SharedExpression, BigInteger>();
+		final ArrayDeque<SharedExpression> terms = new ArrayDeque<SharedExpression>();
+		for(SharedExpression child : node.getChildren())
+		{
+			SharedExpression term = unwrap(_simplified.get(child));
+			if(term.getKind() == SharedExpression.ADDITIVE)
+			{
+				for(SharedExpression grandchild : term.getChildren())
+				{
+					terms.add(grandchild);
+				}
+			}
+			else
+			{
+				terms.add(term);
+			}
+		}
+		for(SharedExpression term : terms)
+		{
+			if(isNumber(term))
+			{
+				constant = constant.add(new BigInteger(term.getData()));
+				continue;
+			}
+			// A canonical product has its number, if any, first; the rest is what like terms have in common
+			BigInteger coefficient = BigInteger.ONE;
+			SharedExpression monomial = term;
+			if(term.getKind() == SharedExpression.MULTIPLICATIVE && isNumber(term.getChild(0)))
+			{
+				coefficient = new BigInteger(term.getChild(0).getData());
+				monomial = term.getNumberOfChildren() == 2 ? term.getChild(1)
+					: _interner.intern(SharedExpression.MULTIPLICATIVE, null, copyOfRange(term.getChildren(), 1));
+			}
+			coefficients.merge(monomial, coefficient, BigInteger::add);
+		}
+
+		final ArrayList<SharedExpression> monomials = new ArrayList<SharedExpression>(coefficients.keySet());
+		Collections.sort(monomials, SharedExpression.STRUCTURAL_ORDER);
+		final ArrayList<SharedExpression> operands = new ArrayList<SharedExpression>();
+		for(SharedExpression monomial : monomials)
+		{
+			BigInteger coefficient = coefficients.get(monomial);
+			if(coefficient.equals(BigInteger.ONE))
+			{
+				operands.add(monomial);
+			}
+			else if(coefficient.signum() != 0)
+			{
+				operands.add(withCoefficient(coefficient, monomial));
+			}
+		}
+		if(constant.signum() != 0 || operands.isEmpty())
+		{
+			operands.add(number(constant));
+		}
+		return operands.size() == 1 ? operands.get(0)
+			: _interner.intern(SharedExpression.ADDITIVE, null, operands.toArray(new SharedExpression[0]));
+	}
+
+	/**
+	 * Multiplies the numbers and sorts the other factors.
+	 */
+	private SharedExpression rewriteProduct(SharedExpression node)
+	{
+		BigInteger constant = BigInteger.ONE;
+		final ArrayList<SharedExpression> factors = new ArrayList<SharedExpression>();
+		for(SharedExpression child : node.getChildren())
+		{
+			SharedExpression factor = unwrap(_simplified.get(child));
+			if(factor.getKind() == SharedExpression.MULTIPLICATIVE)
+			{
+				for(SharedExpression grandchild : factor.getChildren())
+				{
+					if(isNumber(grandchild))
+					{
+						constant = constant.multiply(new BigInteger(grandchild.getData()));
+					}
+					else
+					{
+						factors.add(grandchild);
+					}
+				}
+			}
+			else if(isNumber(factor))
+			{
+				constant = constant.multiply(new BigInteger(factor.getData()));
+			}
+			else
+			{
+				factors.add(factor.getKind() == SharedExpression.ADDITIVE ? _interner.intern(SharedExpression.PARENTHETICAL, null, factor) : factor);
+			}
+		}
+		if(constant.signum() == 0 || factors.isEmpty())
+		{
+			return number(constant);
+		}
+		Collections.sort(factors, SharedExpression.STRUCTURAL_ORDER);
+		if(!constant.equals(BigInteger.ONE))
+		{
+			factors.add(0, number(constant));
+		}
+		return factors.size() == 1 ? unwrap(factors.get(0))
+			: _interner.intern(SharedExpression.MULTIPLICATIVE, null, factors.toArray(new SharedExpression[0]));
+	}
+
+	/**
+	 * Builds the canonical product of a number and a monomial.
+	 */
+	private SharedExpression withCoefficient(BigInteger coefficient, SharedExpression monomial)
+	{
+		final SharedExpression[] factors;
+		if(monomial.getKind() == SharedExpression.MULTIPLICATIVE)
+		{
+			factors = new SharedExpression[monomial.getNumberOfChildren() + 1];
+			System.arraycopy(monomial.getChildren(), 0, factors, 1, factors.length - 1);
+		}
+		else
+		{
+			factors = new SharedExpression[2];
+			factors[1] = monomial;
+		}
+		factors[0] = number(coefficient);
+		return _interner.intern(SharedExpression.MULTIPLICATIVE, null, factors);
+	}
+
+	private SharedExpression number(BigInteger value)
+	{
+		return _interner.intern(SharedExpression.LITERAL, value.toString());
+	}
+
+	private static boolean isNumber(SharedExpression node)
+	{
+		return node.getKind() == SharedExpression.LITERAL && !Double.isNaN(ExpressionCompiler.getNumber(node.getData()));
+	}
+
+	/**
+	 * @return the expression inside any number of parentheses
+	 */
+	private static SharedExpression unwrap(SharedExpression node)
+	{
+		while(node.getKind() == SharedExpression.PARENTHETICAL)
+		{
+			node = node.getChild(0);
+		}
+		return node;
+	}
+
+	private static SharedExpression[] copyOfRange(SharedExpression[] nodes, int start)
+	{
+		final SharedExpression[] copy = new SharedExpression[nodes.length - start];
+		System.arraycopy(nodes, start, copy, 0, copy.length);
+		return copy;
+	}
+}
@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Writes expression trees straight to an Appendable (a StringBuilder, a Writer, ...) or a channel,
+ * either in the indented format of Expression.convertToString or as infix text such as "a+b*(c+d)".
+ * The trees are walked without recursion and nothing is buffered besides what the destination
+ * buffers itself, so very large trees can be exported to disk. The tree format is written in
+ * constant extra memory by following parent links and each node's index in its parent.
+ */
+public class ExpressionWriter
+{
+	private ExpressionWriter()
+	{
+	}
+
+	/**
+	 * Writes the indented tree format: one node per line, each indented by one tab more than its parent.
+	 * @param expression the root of the tree
+	 * @param out the destination
+	 * @param indentLevel the number of tabs before the root
+	 * @throws IOException if the destination throws it
+	 */
+	public static void writeTree(Expression expression, Appendable out, int indentLevel) throws IOException
+	{
+		// Go down to first children and across to next siblings through the parent links, so no stack is needed
+		final ExpressionNode root = (ExpressionNode)expression;
+		ExpressionNode node = root;
+		int depth = 0;
+		while(true)
+		{
+			for(int i = 0; i < indentLevel + depth; i++)
+			{
+				out.append('\t');
+			}
+			out.append(node.getData()).append('\n');
+			if(!node.getChildren().isEmpty())
+			{
+				node = node.getChildren().get(0);
+				depth++;
+				continue;
+			}
+			while(node != root)
+			{
+				ExpressionNode parent = (ExpressionNode)node.getParent();
+				int nextIndex = node.getIndexInParent() + 1;
+				if(nextIndex < parent.getChildren().size())
+				{
+					node = parent.getChildren().get(nextIndex);
+					break;
+				}
+				node = parent;
+				depth--;
+			}
+			if(node == root)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes the expression as infix text without spaces, e.g. "a+b*(c+d)".
+	 * @param expression the root of the tree
+	 * @param out the destination
+	 * @throws IOException if the destination throws it
+	 */
+	public static void writeInfix(Expression expression, Appendable out) throws IOException
+	{
+		final ArrayDeque<ExpressionNode> parents = new ArrayDeque<ExpressionNode>();
+		final ArrayDeque<Iterator<ExpressionNode>> iterators = new ArrayDeque<Iterator<ExpressionNode>>();
+		ExpressionNode node = (ExpressionNode)expression;
+		while(true)
+		{
+			if(node instanceof LiteralExpression)
+			{
+				out.append(node.getData());
+			}
+			else
+			{
+				if(node instanceof ParentheticalExpression)
+				{
+					out.append('(');
+				}
+				parents.push(node);
+				iterators.push(node.getChildren().iterator());
+			}
+			// Close every node whose children are all written, then move on to the next child
+			node = null;
+			while(node == null && !parents.isEmpty())
+			{
+				ExpressionNode parent = parents.peek();
+				Iterator<ExpressionNode> iterator = iterators.peek();
+				if(iterator.hasNext())
+				{
+					node = iterator.next();
+					if(!(parent instanceof ParentheticalExpression) && node.getIndexInParent() != 0)
+					{
+						out.append(parent.getData());
+					}
+				}
+				else
+				{
+					if(parent instanceof ParentheticalExpression)
+					{
+						out.append(')');
+					}
+					parents.pop();
+					iterators.pop();
+				}
+			}
+			if(node == null)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes the indented tree format to a channel, encoded as UTF-8.
+	 * @param expression the root of the tree
+	 * @param channel the destination; it is not closed
+	 * @throws IOException if writing to the channel fails
+	 */
+	public static void writeTree(Expression expression, WritableByteChannel channel) throws IOException
+	{
+		final Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 8192);
+		writeTree(expression, writer, 0);
+		writer.flush();
+	}
+
+	/**
+	 * Writes the expression as infix text to a channel, encoded as UTF-8.
+	 * @param expression the root of the tree
+	 * @param channel the destination; it is not closed
+	 * @throws IOException if writing to the channel fails
+	 */
+	public static void writeInfix(Expression expression, WritableByteChannel channel) throws IOException
+	{
+		final Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 8192);
+		writeInfix(expression, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Returns the expression as infix text without spaces, e.g. "a+b*(c+d)".
+	 * @param expression the root of the tree
+	 * @return the infix text
+	 */
+	public static String toInfix(Expression expression)
+	{
+		final StringBuilder stringBuilder = new StringBuilder();
+		try
+		{
+			writeInfix(expression, stringBuilder);
+		}
+		catch(IOException e)
+		{
+			// A StringBuilder never throws
+			throw new UncheckedIOException(e);
+		}
+		return stringBuilder.toString();
+	}
+}
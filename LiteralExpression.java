@@ -1,10 +1,82 @@
 /**
  * Class that specifically works with literal-case expressions.
+ * A literal can refer to a span of the characters it was parsed from; its text is only created
+ * the first time it is asked for.
  */
 public class LiteralExpression extends ExpressionNode
 {
+	private final CharSequence _source;
+	private final int _start, _end;
+	private String _text;
+
 	public LiteralExpression(String data)
 	{
-		super(data);
+		this(data, 0, data.length());
+		_text = data;
+	}
+
+	/**
+	 * Creates a literal for the characters between start and end of the source, without copying them.
+	 * @param source the characters the literal was parsed from
+	 * @param start the index of the first character of the literal
+	 * @param end the index after the last character of the literal
+	 */
+	public LiteralExpression(CharSequence source, int start, int end)
+	{
+		super(null);
+		_source = source;
+		_start = start;
+		_end = end;
+	}
+
+	/**
+	 * @return the characters the literal was parsed from
+	 */
+	public CharSequence getSource()
+	{
+		return _source;
+	}
+
+	/**
+	 * @return the index of the first character of the literal in its source
+	 */
+	public int getStart()
+	{
+		return _start;
+	}
+
+	/**
+	 * @return the index after the last character of the literal in its source
+	 */
+	public int getEnd()
+	{
+		return _end;
+	}
+
+	/**
+	 * @return the text of the literal, without any spaces that were inside its span
+	 */
+	public String getData()
+	{
+		if(_text == null)
+		{
+			StringBuilder stringBuilder = new StringBuilder(_end - _start);
+			for(int i = _start; i < _end; i++)
+			{
+				if(_source.charAt(i) != ' ')
+				{
+					stringBuilder.append(_source.charAt(i));
+				}
+			}
+			_text = stringBuilder.toString();
+		}
+		return _text;
+	}
+
+	protected ExpressionNode createEmptyCopy()
+	{
+		LiteralExpression copy = new LiteralExpression(_source, _start, _end);
+		copy._text = _text;
+		return copy;
 	}
 }
@@ -7,4 +7,9 @@ public class MultiplicativeExpression extends CompoundExpressionNode
 	{
 		super(data);
 	}
+
+	protected ExpressionNode createEmptyCopy()
+	{
+		return new MultiplicativeExpression(getData());
+	}
 }
@@ -0,0 +1,539 @@
+import java.util.Arrays;
+
+/**
+ * An ExpressionParser that follows the grammar rules literally, like the original recursive parser did,
+ * but remembers the outcome of every rule on every range of tokens (packrat parsing), so no range is
+ * parsed twice by the same rule. It accepts the same expressions and builds the same trees as the
+ * SimpleExpressionParser and is meant as a second, independent engine for comparing results and cost:
+ * E := A | X
+ * A := A+M | M
+ * M := M*M | X
+ * X := (E) | L
+ * L := [0-9]+ | [a-z]
+ * An M has no + outside parentheses, so A can only split a range at its last + outside parentheses, and
+ * M is split at its last * the same way. These operators are looked up in tables that are built with the
+ * tokens rather than searched for, so every rule takes constant time on a range besides its parts, and a
+ * parse takes time in proportion to the number of tokens. Rules are matched and trees built with explicit
+ * stacks instead of recursion, so expressions may be nested arbitrarily deep. The memo table of a parse is
+ * bounded; when it is full, the oldest entry makes room for every new one, which only costs time, never
+ * correctness.
+ */
+public class PackratExpressionParser implements ExpressionParser {
+	/**
+	 * Default maximum number of memo table entries per parse.
+	 */
+	public static final int DEFAULT_MAX_MEMO_ENTRIES = 1 << 20;
+
+	/**
+	 * Rules of the grammar, used as part of the memo table key.
+	 */
+	private static final int RULE_E = 0, RULE_A = 1, RULE_M = 2, RULE_X = 3;
+
+	/**
+	 * Memo table results: the rule failed on the range, or it matched without splitting at an operator.
+	 * Any other result is the index of the operator token the range was split at.
+	 */
+	private static final int FAILED = -2, NO_SPLIT = -1;
+
+	/**
+	 * Result of a rule that is still being matched, because it waits for the result of a part of its range.
+	 */
+	private static final int PENDING = -3;
+
+	private final int _maxMemoEntries;
+	private final ThreadLocal<ExpressionLexer> _lexer = ThreadLocal.withInitial(ExpressionLexer::new);
+
+	public PackratExpressionParser () {
+		this(DEFAULT_MAX_MEMO_ENTRIES);
+	}
+
+	/**
+	 * @param maxMemoEntries the maximum number of memo table entries kept during a parse
+	 */
+	public PackratExpressionParser (int maxMemoEntries) {
+		_maxMemoEntries = maxMemoEntries;
+	}
+
+	/**
+	 * Attempts to create an expression tree -- flattened as much as possible -- from the specified String.
+	 * Throws a ExpressionParseException if the specified string cannot be parsed.
+	 * @param str the string to parse into an expression tree
+	 * @param withJavaFXControls whether to create the JavaFX controls for the expression tree right away
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse (String str, boolean withJavaFXControls) throws ExpressionParseException {
+		final Expression expression = parse(str, 0, str.length());
+		if (withJavaFXControls) {
+			((ExpressionNode) expression).getNode();
+		}
+		return expression;
+	}
+
+	/**
+	 * Attempts to create an expression tree -- flattened as much as possible -- from the characters
+	 * between start and end of the specified input.
+	 * @param input the characters to parse
+	 * @param start the index of the first character to parse
+	 * @param end the index after the last character to parse
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse (CharSequence input, int start, int end) throws ExpressionParseException {
+		final Expression expression = match(input, start, end).build();
+		expression.flatten();
+		return expression;
+	}
+
+	/**
+	 * Matches the characters between start and end of the specified input like parse, without building
+	 * the tree, and returns the number of rules that were evaluated on a range of tokens rather than
+	 * answered from the memo table. Only used by tests, to check that the work grows linearly.
+	 * @param input the characters to match
+	 * @param start the index of the first character to match
+	 * @param end the index after the last character to match
+	 * @return the number of rules evaluated
+	 */
+	long countEvaluations (CharSequence input, int start, int end) throws ExpressionParseException {
+		return match(input, start, end)._evaluations;
+	}
+
+	/**
+	 * Tokenizes the input and matches RULE_E on all of its tokens.
+	 * @return the parse, whose tree can be built
+	 */
+	private Parse match (CharSequence input, int start, int end) throws ExpressionParseException {
+		final ExpressionLexer lexer = _lexer.get();
+		if (!lexer.tokenize(input, start, end)) {
+			throw new ExpressionParseException("Invalid character at offset " + lexer.getErrorOffset() + ": " + input.subSequence(start, end), lexer.getErrorOffset());
+		}
+		final Parse parse = new Parse(input, lexer.getTokens(), lexer.getNumberOfTokens(), _maxMemoEntries);
+		if (parse._numberOfTokens == 0 || parse.match(RULE_E, 0, parse._numberOfTokens) == FAILED) {
+			throw new ExpressionParseException("Cannot parse expression: " + input.subSequence(start, end));
+		}
+		return parse;
+	}
+
+	/**
+	 * The state of a single parse: the tokens, the memo table and the stack of rules that are matched or built.
+	 */
+	private static class Parse
+	{
+		final CharSequence _input;
+		final int[] _tokens;
+		final int _numberOfTokens;
+		final MemoTable _memo;
+
+		/**
+		 * For every position between tokens, the index of the last + and of the last * before it in the same
+		 * parentheses, or -1 if there is none after the parenthesis that was opened last.
+		 */
+		final int[] _lastPlus, _lastTimes;
+
+		/**
+		 * The stack: the rule of every entry, its range, how far matching it got and, while building, the
+		 * expression it becomes a child of.
+		 */
+		private int[] _rules = new int[16], _starts = new int[16], _ends = new int[16], _stages = new int[16];
+		private CompoundExpression[] _parents = new CompoundExpression[16];
+		private int _depth;
+
+		/**
+		 * The number of rules evaluated on a range, not counting results taken from the memo table.
+		 */
+		long _evaluations;
+
+		Parse(CharSequence input, int[] tokens, int numberOfTokens, int maxMemoEntries)
+		{
+			_input = input;
+			_tokens = tokens;
+			_numberOfTokens = numberOfTokens;
+			_memo = new MemoTable(maxMemoEntries);
+			_lastPlus = new int[numberOfTokens + 1];
+			_lastTimes = new int[numberOfTokens + 1];
+			// The last + and * at every level of parentheses that is open
+			final int[] plus = new int[numberOfTokens + 1], times = new int[numberOfTokens + 1];
+			int level = 0;
+			plus[0] = times[0] = -1;
+			for(int i = 0; i < numberOfTokens; i++)
+			{
+				_lastPlus[i] = plus[level];
+				_lastTimes[i] = times[level];
+				int kind = kind(i);
+				if(kind == ExpressionLexer.OPEN_PARENTHESIS)
+				{
+					level++;
+					plus[level] = times[level] = -1;
+				}
+				else if(kind == ExpressionLexer.CLOSE_PARENTHESIS)
+				{
+					if(level > 0)
+					{
+						level--;
+					}
+					else
+					{
+						// No range across an unmatched ) can match; start over
+						plus[0] = times[0] = -1;
+					}
+				}
+				else if(kind == ExpressionLexer.PLUS)
+				{
+					plus[level] = i;
+				}
+				else if(kind == ExpressionLexer.TIMES)
+				{
+					times[level] = i;
+				}
+			}
+			_lastPlus[numberOfTokens] = plus[level];
+			_lastTimes[numberOfTokens] = times[level];
+		}
+
+		/**
+		 * @param i the index of a token
+		 * @return the kind of the token
+		 */
+		int kind(int i)
+		{
+			return _tokens[i * ExpressionLexer.TOKEN_SIZE];
+		}
+
+		/**
+		 * Returns the operator token that A or M splits a range at: the last + or * outside parentheses.
+		 * @return the index of the operator token, or NO_SPLIT if the range has none
+		 */
+		int split(int rule, int start, int end)
+		{
+			final int split = rule == RULE_A ? _lastPlus[end] : _lastTimes[end];
+			return split > start ? split : NO_SPLIT;
+		}
+
+		long key(int rule, int start, int end)
+		{
+			return ((long)(rule * (_numberOfTokens + 1) + start) << 32) | end;
+		}
+
+		void push(int rule, int start, int end, CompoundExpression parent)
+		{
+			if(_depth == _rules.length)
+			{
+				_rules = Arrays.copyOf(_rules, 2 * _depth);
+				_starts = Arrays.copyOf(_starts, 2 * _depth);
+				_ends = Arrays.copyOf(_ends, 2 * _depth);
+				_stages = Arrays.copyOf(_stages, 2 * _depth);
+				_parents = Arrays.copyOf(_parents, 2 * _depth);
+			}
+			_rules[_depth] = rule;
+			_starts[_depth] = start;
+			_ends[_depth] = end;
+			_stages[_depth] = 0;
+			_parents[_depth] = parent;
+			_depth++;
+		}
+
+		/**
+		 * Starts matching a rule on a range.
+		 * @return the result if it is known right away, or PENDING if the rule was pushed on the stack
+		 */
+		int enter(int rule, int start, int end)
+		{
+			if(start >= end)
+			{
+				return FAILED;
+			}
+			final int memoized = _memo.get(key(rule, start, end));
+			if(memoized != MemoTable.MISSING)
+			{
+				return memoized;
+			}
+			_evaluations++;
+			push(rule, start, end, null);
+			return PENDING;
+		}
+
+		/**
+		 * Checks whether a rule matches the tokens between start (inclusive) and end (exclusive). Instead of
+		 * calling itself for a part of the range, a rule pushes the part on the stack and is continued, at its
+		 * next stage, with the result of the part.
+		 * @param rule the rule to match
+		 * @param start the index of the first token
+		 * @param end the index after the last token
+		 * @return FAILED, NO_SPLIT, or the index of the operator token the range is split at
+		 */
+		int match(int rule, int start, int end)
+		{
+			int result = enter(rule, start, end);
+			while(_depth > 0)
+			{
+				final int top = _depth - 1;
+				final int frameRule = _rules[top], frameStart = _starts[top], frameEnd = _ends[top], stage = _stages[top]++;
+				int frameResult = PENDING;
+				if(frameRule == RULE_E)
+				{
+					if(stage == 0)
+					{
+						result = enter(RULE_A, frameStart, frameEnd);
+					}
+					else if(stage == 1 && result == FAILED)
+					{
+						result = enter(RULE_X, frameStart, frameEnd);
+					}
+					else
+					{
+						frameResult = result != FAILED ? NO_SPLIT : FAILED;
+					}
+				}
+				else if(frameRule == RULE_A || frameRule == RULE_M)
+				{
+					final int split = split(frameRule, frameStart, frameEnd);
+					if(split == NO_SPLIT)
+					{
+						if(stage == 0)
+						{
+							result = enter(frameRule == RULE_A ? RULE_M : RULE_X, frameStart, frameEnd);
+						}
+						else
+						{
+							frameResult = result != FAILED ? NO_SPLIT : FAILED;
+						}
+					}
+					else if(stage == 0)
+					{
+						result = enter(frameRule, frameStart, split);
+					}
+					else if(stage == 1 && result != FAILED)
+					{
+						result = enter(RULE_M, split + 1, frameEnd);
+					}
+					else
+					{
+						// Neither M nor X matches a range with the operator outside parentheses, so there is no other way
+						frameResult = result != FAILED ? split : FAILED;
+					}
+				}
+				else if(kind(frameStart) == ExpressionLexer.OPEN_PARENTHESIS)
+				{
+					if(stage == 0 && kind(frameEnd - 1) == ExpressionLexer.CLOSE_PARENTHESIS)
+					{
+						result = enter(RULE_E, frameStart + 1, frameEnd - 1);
+					}
+					else
+					{
+						frameResult = stage > 0 && result != FAILED ? NO_SPLIT : FAILED;
+					}
+				}
+				else
+				{
+					frameResult = frameEnd == frameStart + 1 && kind(frameStart) == ExpressionLexer.LITERAL ? NO_SPLIT : FAILED;
+				}
+				if(frameResult != PENDING)
+				{
+					_memo.put(key(frameRule, frameStart, frameEnd), frameResult);
+					_depth--;
+					result = frameResult;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Builds the (not yet flattened) expression for all tokens, which RULE_E is known to match. Every part
+		 * of a matching range matches too, so the tree follows from the splits alone and the memo table is not
+		 * needed any more. Every range on the stack becomes a child of the expression it was pushed with; the
+		 * left part of a split is pushed last, so it is built and added before the right part.
+		 * @return the expression
+		 */
+		Expression build()
+		{
+			Expression root = null;
+			push(RULE_E, 0, _numberOfTokens, null);
+			while(_depth > 0)
+			{
+				_depth--;
+				final int rule = _rules[_depth], start = _starts[_depth], end = _ends[_depth];
+				final CompoundExpression parent = _parents[_depth];
+				_parents[_depth] = null;
+				final Expression expression;
+				if(rule == RULE_E)
+				{
+					// A matches everything that X matches
+					push(RULE_A, start, end, parent);
+					continue;
+				}
+				else if(rule == RULE_A || rule == RULE_M)
+				{
+					final int split = split(rule, start, end);
+					if(split == NO_SPLIT)
+					{
+						push(rule == RULE_A ? RULE_M : RULE_X, start, end, parent);
+						continue;
+					}
+					CompoundExpression compoundExpression = rule == RULE_A ? new AdditiveExpression("+") : new MultiplicativeExpression("*");
+					push(RULE_M, split + 1, end, compoundExpression);
+					push(rule, start, split, compoundExpression);
+					expression = compoundExpression;
+				}
+				else if(kind(start) == ExpressionLexer.OPEN_PARENTHESIS)
+				{
+					ParentheticalExpression parentheticalNode = new ParentheticalExpression("()");
+					push(RULE_E, start + 1, end - 1, parentheticalNode);
+					expression = parentheticalNode;
+				}
+				else
+				{
+					int literalStart = _tokens[start * ExpressionLexer.TOKEN_SIZE + 1];
+					expression = new LiteralExpression(_input, literalStart, literalStart + _tokens[start * ExpressionLexer.TOKEN_SIZE + 2]);
+				}
+				if(parent == null)
+				{
+					root = expression;
+				}
+				else
+				{
+					parent.addSubexpression(expression);
+					expression.setParent(parent);
+				}
+			}
+			return root;
+		}
+	}
+
+	/**
+	 * An open-addressing hash table from long keys to int results with a fixed maximum number of entries.
+	 * When the maximum is reached, the oldest entry is removed for every new one.
+	 */
+	private static class MemoTable
+	{
+		static final int MISSING = Integer.MIN_VALUE;
+		private static final long EMPTY = -1L;
+
+		private final int _maxEntries;
+		private long[] _keys;
+		private int[] _values;
+		private int _size;
+
+		/**
+		 * The keys in the order they were put, as a ring of _size keys that starts at _oldest.
+		 */
+		private long[] _order;
+		private int _oldest;
+
+		MemoTable(int maxEntries)
+		{
+			_maxEntries = Math.max(maxEntries, 1);
+			allocate(16);
+			_order = new long[Math.min(8, _maxEntries)];
+		}
+
+		private void allocate(int capacity)
+		{
+			_keys = new long[capacity];
+			_values = new int[capacity];
+			Arrays.fill(_keys, EMPTY);
+			_size = 0;
+		}
+
+		private int slot(long key)
+		{
+			long hash = key * 0x9E3779B97F4A7C15L;
+			return (int)(hash >>> 40) & (_keys.length - 1);
+		}
+
+		int get(long key)
+		{
+			for(int i = slot(key); _keys[i] != EMPTY; i = (i + 1) & (_keys.length - 1))
+			{
+				if(_keys[i] == key)
+				{
+					return _values[i];
+				}
+			}
+			return MISSING;
+		}
+
+		void put(long key, int value)
+		{
+			if(get(key) != MISSING)
+			{
+				insert(key, value);
+				return;
+			}
+			if(_size >= _maxEntries)
+			{
+				remove(_order[_oldest]);
+				_oldest = (_oldest + 1) % _order.length;
+			}
+			else if(2 * (_size + 1) > _keys.length)
+			{
+				long[] keys = _keys;
+				int[] values = _values;
+				allocate(_keys.length * 2);
+				for(int i = 0; i < keys.length; i++)
+				{
+					if(keys[i] != EMPTY)
+					{
+						insert(keys[i], values[i]);
+					}
+				}
+			}
+			if(_size == _order.length)
+			{
+				final long[] order = new long[Math.min(2 * _order.length, _maxEntries)];
+				for(int i = 0; i < _size; i++)
+				{
+					order[i] = _order[(_oldest + i) % _order.length];
+				}
+				_order = order;
+				_oldest = 0;
+			}
+			_order[(_oldest + _size) % _order.length] = key;
+			insert(key, value);
+		}
+
+		private void insert(long key, int value)
+		{
+			int i = slot(key);
+			while(_keys[i] != EMPTY && _keys[i] != key)
+			{
+				i = (i + 1) & (_keys.length - 1);
+			}
+			if(_keys[i] == EMPTY)
+			{
+				_size++;
+			}
+			_keys[i] = key;
+			_values[i] = value;
+		}
+
+		/**
+		 * Removes a key and moves the keys after it in its run back, so that every key can still be found
+		 * from its slot without tombstones.
+		 */
+		private void remove(long key)
+		{
+			final int mask = _keys.length - 1;
+			int i = slot(key);
+			while(_keys[i] != key)
+			{
+				if(_keys[i] == EMPTY)
+				{
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			for(int j = (i + 1) & mask; _keys[j] != EMPTY; j = (j + 1) & mask)
+			{
+				int home = slot(_keys[j]);
+				// The key at j stays unless its slot is cyclically outside (i, j]
+				if(i <= j ? i < home && home <= j : i < home || home <= j)
+				{
+					continue;
+				}
+				_keys[i] = _keys[j];
+				_values[i] = _values[j];
+				i = j;
+			}
+			_keys[i] = EMPTY;
+			_size--;
+		}
+	}
+}
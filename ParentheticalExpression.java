@@ -7,4 +7,9 @@ public class ParentheticalExpression extends CompoundExpressionNode
 	{
 		super(data);
 	}
+
+	protected ExpressionNode createEmptyCopy()
+	{
+		return new ParentheticalExpression(getData());
+	}
 }
@@ -0,0 +1,76 @@
+import java.util.Random;
+
+/**
+ * Generates random expression strings that SimpleExpressionParser accepts, e.g. for benchmarks.
+ * An expression is a sum of up to width terms, every term a product of up to width factors, and
+ * every factor a literal or -- with the given probability, as long as the nesting is less than
+ * depth -- a parenthesized expression. The same seed always gives the same expressions.
+ */
+public class RandomExpressionGenerator
+{
+	private final Random _random;
+	private final int _width, _depth;
+	private final double _parenthesisDensity;
+
+	/**
+	 * @param seed the seed of the random numbers
+	 * @param width the maximum number of terms in a sum and of factors in a product, at least 1
+	 * @param depth the maximum nesting of parentheses
+	 * @param parenthesisDensity the probability that a factor is a parenthesized expression, from 0 to 1
+	 */
+	public RandomExpressionGenerator(long seed, int width, int depth, double parenthesisDensity)
+	{
+		if(width < 1 || depth < 0 || parenthesisDensity < 0 || parenthesisDensity > 1)
+		{
+			throw new IllegalArgumentException("Invalid width, depth or parenthesis density");
+		}
+		_random = new Random(seed);
+		_width = width;
+		_depth = depth;
+		_parenthesisDensity = parenthesisDensity;
+	}
+
+	/**
+	 * @return the next random expression
+	 */
+	public String next()
+	{
+		final StringBuilder stringBuilder = new StringBuilder();
+		appendSum(stringBuilder, 0);
+		return stringBuilder.toString();
+	}
+
+	private void appendSum(StringBuilder stringBuilder, int level)
+	{
+		final int numberOfTerms = 1 + _random.nextInt(_width);
+		for(int i = 0; i < numberOfTerms; i++)
+		{
+			if(i > 0)
+			{
+				stringBuilder.append('+');
+			}
+			final int numberOfFactors = 1 + _random.nextInt(_width);
+			for(int j = 0; j < numberOfFactors; j++)
+			{
+				if(j > 0)
+				{
+					stringBuilder.append('*');
+				}
+				if(level < _depth && _random.nextDouble() < _parenthesisDensity)
+				{
+					stringBuilder.append('(');
+					appendSum(stringBuilder, level + 1);
+					stringBuilder.append(')');
+				}
+				else if(_random.nextBoolean())
+				{
+					stringBuilder.append((char)('a' + _random.nextInt(26)));
+				}
+				else
+				{
+					stringBuilder.append(_random.nextInt(100));
+				}
+			}
+		}
+	}
+}
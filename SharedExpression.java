@@ -0,0 +1,261 @@
+import java.util.ArrayDeque;
+import java.util.Comparator;
+
+/**
+ * An immutable expression node. Because it never changes, one SharedExpression can be the child of
+ * any number of parents, so structurally equal subtrees can be stored once (see ExpressionInterner).
+ * The structural hash code is computed when the node is created. Unlike ExpressionNode, a
+ * SharedExpression has no parent and no JavaFX controls; toExpression() creates a mutable
+ * ExpressionNode tree from it, e.g. for the editor.
+ */
+
+public final class SharedExpression
+{
+	/**
+	 * Kinds of nodes.
+	 */
+	public static final int LITERAL = 0, ADDITIVE = 1, MULTIPLICATIVE = 2, PARENTHETICAL = 3;
+
+	private static final SharedExpression[] NO_CHILDREN = new SharedExpression[0];
+
+	/**
+	 * A total order of trees that is consistent with equals: trees are compared node by node in pre-order,
+	 * by kind, then data, then number of children. Sorting operands by it gives them a canonical order.
+	 */
+	public static final Comparator<SharedExpression> STRUCTURAL_ORDER = SharedExpression::compare;
+
+	private final int _kind;
+	private final String _data;
+	private final SharedExpression[] _children;
+	private final int _hashCode;
+
+	/**
+	 * Creates a node. The array of children is not copied and must not be changed afterwards.
+	 * @param kind the kind of the node
+	 * @param data the literal, for a literal node; ignored otherwise
+	 * @param children the children of the node, from left to right
+	 */
+	public SharedExpression(int kind, String data, SharedExpression[] children)
+	{
+		_kind = kind;
+		_data = kind == LITERAL ? data : dataOf(kind);
+		_children = children.length == 0 ? NO_CHILDREN : children;
+		int hashCode = 31 * kind + _data.hashCode();
+		for(SharedExpression child : _children)
+		{
+			hashCode = 31 * hashCode + child._hashCode;
+		}
+		_hashCode = hashCode;
+	}
+
+	/**
+	 * Returns the data that ExpressionNode uses for a kind of node that is not a literal.
+	 * @param kind the kind of the node
+	 * @return "+", "*" or "()"
+	 */
+	private static String dataOf(int kind)
+	{
+		return kind == ADDITIVE ? "+" : kind == MULTIPLICATIVE ? "*" : "()";
+	}
+
+	/**
+	 * Returns the kind of node that stands for the specified expression.
+	 * @param expression the expression
+	 * @return LITERAL, ADDITIVE, MULTIPLICATIVE or PARENTHETICAL
+	 */
+	public static int kindOf(Expression expression)
+	{
+		if(expression instanceof ParentheticalExpression)
+		{
+			return PARENTHETICAL;
+		}
+		else if(expression instanceof CompoundExpression)
+		{
+			return "*".equals(((ExpressionNode)expression).getData()) ? MULTIPLICATIVE : ADDITIVE;
+		}
+		return LITERAL;
+	}
+
+	public int getKind()
+	{
+		return _kind;
+	}
+
+	/**
+	 * @return the literal, "+", "*" or "()"
+	 */
+	public String getData()
+	{
+		return _data;
+	}
+
+	public int getNumberOfChildren()
+	{
+		return _children.length;
+	}
+
+	public SharedExpression getChild(int index)
+	{
+		return _children[index];
+	}
+
+	/**
+	 * @return a copy of the array of children
+	 */
+	public SharedExpression[] getChildren()
+	{
+		return _children.clone();
+	}
+
+	/**
+	 * Returns a node like this one with one child replaced. This node does not change; the new node shares
+	 * all other children with it, so changing a deep node costs one new node per level (path copying).
+	 * @param index the index of the child to replace
+	 * @param child the new child
+	 * @return the new node
+	 */
+	public SharedExpression withChild(int index, SharedExpression child)
+	{
+		final SharedExpression[] children = _children.clone();
+		children[index] = child;
+		return new SharedExpression(_kind, _data, children);
+	}
+
+	/**
+	 * Returns a node like this one in which one child has moved to another position, as ExpressionNode.moveTo
+	 * moves it. This node does not change; the new node shares all children with it.
+	 * @param fromIndex the index of the child before the move
+	 * @param toIndex the index of the child after the move
+	 * @return the new node
+	 */
+	public SharedExpression withChildMoved(int fromIndex, int toIndex)
+	{
+		final SharedExpression[] children = _children.clone();
+		final SharedExpression moved = children[fromIndex];
+		if(fromIndex < toIndex)
+		{
+			System.arraycopy(children, fromIndex + 1, children, fromIndex, toIndex - fromIndex);
+		}
+		else
+		{
+			System.arraycopy(children, toIndex, children, toIndex + 1, fromIndex - toIndex);
+		}
+		children[toIndex] = moved;
+		return new SharedExpression(_kind, _data, children);
+	}
+
+	/**
+	 * Structural equality: same kind, same data and equal children in the same order. Children that are
+	 * the same object are not compared any further, so two nodes from the same ExpressionInterner are
+	 * compared in time proportional to their number of children (and are only equal if they are the same object).
+	 * Other trees are walked with explicit stacks, like compare does, so they may be arbitrarily deep.
+	 */
+	public boolean equals(Object object)
+	{
+		if(this == object)
+		{
+			return true;
+		}
+		if(!(object instanceof SharedExpression))
+		{
+			return false;
+		}
+		SharedExpression other = (SharedExpression)object;
+		return _hashCode == other._hashCode && compare(this, other) == 0;
+	}
+
+	public int hashCode()
+	{
+		return _hashCode;
+	}
+
+	/**
+	 * Compares two trees for STRUCTURAL_ORDER with explicit stacks. Subtrees that are the same object are skipped.
+	 */
+	private static int compare(SharedExpression a, SharedExpression b)
+	{
+		final ArrayDeque<SharedExpression> left = new ArrayDeque<SharedExpression>(), right = new ArrayDeque<SharedExpression>();
+		left.push(a);
+		right.push(b);
+		while(!left.isEmpty())
+		{
+			SharedExpression x = left.pop(), y = right.pop();
+			if(x == y)
+			{
+				continue;
+			}
+			int difference = Integer.compare(x._kind, y._kind);
+			if(difference == 0)
+			{
+				difference = x._data.compareTo(y._data);
+			}
+			if(difference == 0)
+			{
+				difference = Integer.compare(x._children.length, y._children.length);
+			}
+			if(difference != 0)
+			{
+				return difference;
+			}
+			for(int i = x._children.length - 1; i >= 0; i--)
+			{
+				left.push(x._children[i]);
+				right.push(y._children[i]);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Creates a mutable ExpressionNode tree with the same structure, with parent links but without
+	 * JavaFX controls. Every shared subtree is copied once for every place it appears.
+	 * @return the root of the new tree
+	 */
+	public Expression toExpression()
+	{
+		final ArrayDeque<SharedExpression> nodes = new ArrayDeque<SharedExpression>();
+		final ArrayDeque<CompoundExpression> parents = new ArrayDeque<CompoundExpression>();
+		final Expression root = createExpressionNode();
+		pushChildren(this, root, nodes, parents);
+		while(!nodes.isEmpty())
+		{
+			SharedExpression node = nodes.pop();
+			CompoundExpression parent = parents.pop();
+			Expression expression = node.createExpressionNode();
+			parent.addSubexpression(expression);
+			expression.setParent(parent);
+			pushChildren(node, expression, nodes, parents);
+		}
+		return root;
+	}
+
+	/**
+	 * Pushes the children of a node in reverse, so they are popped and added from left to right.
+	 */
+	private static void pushChildren(SharedExpression node, Expression expression, ArrayDeque<SharedExpression> nodes, ArrayDeque<CompoundExpression> parents)
+	{
+		for(int i = node._children.length - 1; i >= 0; i--)
+		{
+			nodes.push(node._children[i]);
+			parents.push((CompoundExpression)expression);
+		}
+	}
+
+	/**
+	 * @return a childless ExpressionNode of the same kind and with the same data as this node
+	 */
+	private Expression createExpressionNode()
+	{
+		switch(_kind)
+		{
+			case ADDITIVE:
+				return new AdditiveExpression(_data);
+			case MULTIPLICATIVE:
+				return new MultiplicativeExpression(_data);
+			case PARENTHETICAL:
+				return new ParentheticalExpression(_data);
+			default:
+				return new LiteralExpression(_data);
+		}
+	}
+}
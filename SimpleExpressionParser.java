@@ -1,10 +1,5 @@
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.Stack;
-import java.util.function.Function;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.StackPane;
 
 /**
  * Starter code to implement an ExpressionParser. Your parser methods should use the following grammar:
@@ -13,316 +8,210 @@ import javafx.scene.layout.StackPane;
  * M := M*M | X
  * X := (E) | L
  * L := [0-9]+ | [a-z]
+ *
+ * The string is first split into tokens by an ExpressionLexer, and the grammar is then recognized in a
+ * single left-to-right pass over the tokens. Every open parenthesis gets its own Frame on an explicit
+ * stack (so deeply nested input cannot overflow the call stack), and each Frame collects the terms of
+ * its sum and the factors of the product currently being read. Because + and * are both
+ * left-associative, a whole chain of them is built directly as one flattened node.
  */
 public class SimpleExpressionParser implements ExpressionParser {
+	/**
+	 * The lexer of every thread that uses this parser, kept so that its token array can be reused.
+	 */
+	private final ThreadLocal<ExpressionLexer> _lexer = ThreadLocal.withInitial(ExpressionLexer::new);
+
 	/**
 	 * Attempts to create an expression tree -- flattened as much as possible -- from the specified String.
 	 * Throws a ExpressionParseException if the specified string cannot be parsed.
 	 * @param str the string to parse into an expression tree
-	 * @param withJavaFXControls you can just ignore this variable for R1
+	 * @param withJavaFXControls whether to create the JavaFX controls for the expression tree right away;
+	 * if false, they are only created if getNode() is called later
 	 * @return the Expression object representing the parsed expression tree
 	 */
 	public Expression parse (String str, boolean withJavaFXControls) throws ExpressionParseException {
-		// Remove spaces -- this simplifies the parsing logic
-		str = str.replaceAll(" ", "");
-		Expression expression = parseExpression(str);
-		if (expression == null) {
-			// If we couldn't parse the string, then raise an error
-			throw new ExpressionParseException("Cannot parse expression: " + str);
+		final Expression expression = parse(str, 0, str.length());
+		if (withJavaFXControls) {
+			// Otherwise the JavaFX controls are created the first time getNode() is called
+			((ExpressionNode) expression).getNode();
 		}
-
-		// Flatten the expression before returning
-		expression.flatten();
 		return expression;
 	}
 
 	/**
-	 * Checks if the expression being passed in is a valid expression that can be parsed.
-	 * @param str the String representation of the expression
-	 * @param operator the character representation of the operator that may be passed in (+,*,(), or a literal)
-	 * @param testLeftSubexpression function that tests for the left part of the expression (before the operator)
-	 * @param testRightSubexpression function that tests for the right part of the expression (after the operator)
-	 * @return a boolean value of whether or not the expression that is being passed in is valid to parse
+	 * Attempts to create an expression tree -- flattened as much as possible -- from the characters
+	 * between start and end of the specified input, without copying them. The literals of the tree
+	 * keep referring to the input until their text is asked for, so the input must not change while
+	 * the tree is in use.
+	 * @param input the characters to parse, e.g. a String or a CharBuffer
+	 * @param start the index of the first character to parse
+	 * @param end the index after the last character to parse
+	 * @return the Expression object representing the parsed expression tree
 	 */
-	
-	private static CompoundExpression parseOperator(String str, char operator, Function<String, Expression> parseLeftSubexpression, Function<String, Expression> parseRightSubexpression)
-	{		
-		for(int i = 1; i < str.length() - 1; i++)
-		{
-			if(str.charAt(i) == operator)
-			{
-				Expression leftSubexpression = parseLeftSubexpression.apply(str.substring(0, i));
-				Expression rightSubexpression = parseRightSubexpression.apply(str.substring(i + 1));
-				if(leftSubexpression != null && rightSubexpression != null)
-				{
-					CompoundExpression compoundExpression = new CompoundExpressionNode("" + operator);
-					compoundExpression.addSubexpression(leftSubexpression);
-					leftSubexpression.setParent(compoundExpression);
-					((HBox)compoundExpression.getNode()).getChildren().add(0, leftSubexpression.getNode());
-					compoundExpression.addSubexpression(rightSubexpression);
-					rightSubexpression.setParent(compoundExpression);
-					((HBox)compoundExpression.getNode()).getChildren().add(rightSubexpression.getNode());
-					return compoundExpression;
-				}
-			}
-		}
-		return null;
+	public Expression parse (CharSequence input, int start, int end) throws ExpressionParseException {
+		// The parser only ever builds flattened chains, so there is nothing left for flatten() to merge
+		return parseTokens(input, start, end);
 	}
 
 	/**
-	 * Parses the expression by the production rule of E: checks if the subexpression contains either
-	 * terminal A or M from the boolean methods (isA() or isM()).
-	 * @param str the String representation of the expression
-	 * @return the expression that is either being parsed through the production rule of A or M. If
-	 * the expression cannot be parsed by production rules of A or M, it would return null.
+	 * The state of one parenthetical level (or of the whole expression at the bottom of the stack)
+	 * while it is being read.
 	 */
-	
-	private static int findEndOfParenthetical(String str)
+	private static class Frame
 	{
-		char [] charArray = str.toCharArray();
-		int occurencesOfOpenParentheses = Utility.numberOfOccurences(str, '(');
-		int occurencesOfClosedParentheses = Utility.numberOfOccurences(str, ')');
-		if(occurencesOfOpenParentheses == occurencesOfClosedParentheses)
-		{
-			int countClosedParentheses = 0;
-			for(int i = 0; i < charArray.length; i++)
-			{
-				if(charArray[i] == ')')
-				{
-					countClosedParentheses++;
-					if(countClosedParentheses == occurencesOfClosedParentheses)
-					{
-						return i;
-					}
-				}
-			}
-		}
-		return -1;
-	}
-	
-	/**
-	 * Parses the expression through the production rule E.
-	 * @param str the expression that is either being parsed through the production rule A or X.
-	 * @return the left and right side expression of the operator. Or returns the parsed expression from the
-	 * production rule of X. If it does not parse through the production rule, return null.
-	 */
-	private static Expression parseE(String str)
-	{
-		Expression additiveExpression = parseA(str);
-		Expression parentheticalNode = parseX(str);
-		if(additiveExpression != null)
-		{
-			return additiveExpression;
-		}
-		else if(parentheticalNode != null)
+		/**
+		 * The already completed terms of the sum at this level.
+		 */
+		final ArrayList<Expression> _terms = new ArrayList<Expression>();
+		/**
+		 * The factors of the product that is currently being read.
+		 */
+		final ArrayList<Expression> _factors = new ArrayList<Expression>();
+
+		/**
+		 * Moves the product currently being read into the list of terms.
+		 */
+		void endTerm()
 		{
-			return parentheticalNode;
+			_terms.add(buildOperator('*', _factors));
+			_factors.clear();
 		}
-		else
+
+		/**
+		 * Finishes this level and returns the expression it stands for.
+		 * @return the sum of all terms read at this level
+		 */
+		Expression end()
 		{
-			return null;	
+			endTerm();
+			return buildOperator('+', _terms);
 		}
 	}
 
 	/**
-	 * Parses the expression through the production rule A. Checks if the expression contains the operator '+'
-	 * in the expression.
-	 * @param str the expression that is either being parsed through the condition of A+M or by the production
-	 * rule of M.
-	 * @return the left and right side expression of the operator. Or returns the parsed expression from the
-	 * production rule of M. If it does not parse through the production rule, return null.
+	 * Builds the flattened node for a chain of operands joined by the same operator. A chain of one
+	 * operand is just the operand itself.
+	 * @param operator the operator joining the operands ('+' or '*')
+	 * @param operands the operands, from left to right
+	 * @return the expression for the whole chain
 	 */
-	private static Expression parseA(String str)
+	private static Expression buildOperator(char operator, ArrayList<Expression> operands)
 	{
-		Expression additiveExpression = parseOperator(str, '+', SimpleExpressionParser::parseA, SimpleExpressionParser::parseM);
-		Expression multiplicativeExpression = parseM(str);
-		if(additiveExpression != null)
+		if(operands.size() == 1)
 		{
-			return additiveExpression;
+			return operands.get(0);
 		}
-		else if(multiplicativeExpression != null)
+		CompoundExpression compoundExpression = operator == '+' ? new AdditiveExpression("+") : new MultiplicativeExpression("*");
+		for(Expression operand : operands)
 		{
-			return multiplicativeExpression;
-		}
-		else
-		{
-			return null;
+			compoundExpression.addSubexpression(operand);
+			operand.setParent(compoundExpression);
 		}
+		return compoundExpression;
 	}
 
 	/**
-	 * Parses the expression through the production rule M. Checks if the expression contains the operator '*'
-	 * in the expression.
-	 * @param str the expression that is either being parsed through the condition of M*M or by the production
-	 * rule of X.
-	 * @return the left and right side expression of the operator. Or returns the parsed expression from the
-	 * production rule of X. If it does not parse through the production rule, return null.
+	 * Wraps the specified expression in parentheses.
+	 * @param innerExpression the expression between the parentheses
+	 * @return the parenthetical expression
 	 */
-
-	private static Expression parseM(String str)
+	private static Expression buildParenthetical(Expression innerExpression)
 	{
-		Expression multiplicativeExpression = parseOperator(str, '*', SimpleExpressionParser::parseM, SimpleExpressionParser::parseM);
-		Expression parentheticalExpression = parseX(str);
-		if(multiplicativeExpression != null)
-		{
-			return multiplicativeExpression;
-		} 
-		else if(parentheticalExpression != null)
-		{
-			return parentheticalExpression;
-		}
-		else
-		{
-			return null;	
-		}
+		ParentheticalExpression parentheticalNode = new ParentheticalExpression("()");
+		parentheticalNode.addSubexpression(innerExpression);
+		innerExpression.setParent(parentheticalNode);
+		return parentheticalNode;
 	}
 
 	/**
-	 * Parses the expression through the production rule X. Checks if the expression contains the '(' and ')'
-	 * in the expression.
-	 * @param str the expression that is either being parsed through the condition of (E) or by the production
-	 * rule of L.
-	 * @return the left and right side expression of the operator. Or returns the parsed expression from the
-	 * production rule of L. If it does not parse through the production rule, return null.
+	 * Method parses the String representation of the expression that is being passed in.
+	 * @param str the String representation of the expression that is going to be parsed
+	 * @return the parsed, flattened expression, or null if the string is not a valid expression
 	 */
 
-	private static Expression parseX(String str)
-	{
-		if(str.charAt(0) == '(')
-		{
-			int closeParenthesisIndex = findEndOfParenthetical(str);
-			if(closeParenthesisIndex != -1)
-			{
-				Expression innerExpression = parseE(str.substring(1, closeParenthesisIndex));
-				if(innerExpression != null)
-				{
-					ParentheticalExpression parentheticalNode = new ParentheticalExpression("");
-					parentheticalNode.addSubexpression(innerExpression);
-					innerExpression.setParent(parentheticalNode);
-					String labelSpacing = "";
-					for(char character : str.substring(1, closeParenthesisIndex).toCharArray())
-					{
-						labelSpacing += " ";
-					}
-					parentheticalNode.setLabel("(" + labelSpacing + ")");
-					((HBox)parentheticalNode.getNode()).getChildren().add(0, innerExpression.getNode());
-					CompoundExpressionNode nonTerminalNode;
-					if(closeParenthesisIndex + 1 != str.toCharArray().length)
-					{
-						if(str.charAt(closeParenthesisIndex + 1) == '+' || str.charAt(closeParenthesisIndex + 1) == '*')
-						{
-							nonTerminalNode = new CompoundExpressionNode("" + str.charAt(closeParenthesisIndex + 1));
-							Expression restOfExpression = parseE(str.substring(closeParenthesisIndex + 2));
-							nonTerminalNode.addSubexpression(parentheticalNode);
-							parentheticalNode.setParent(nonTerminalNode);
-							((HBox)nonTerminalNode.getNode()).getChildren().add(0, parentheticalNode.getNode());
-							nonTerminalNode.addSubexpression(restOfExpression);
-							restOfExpression.setParent(nonTerminalNode);
-							((HBox)nonTerminalNode.getNode()).getChildren().add(restOfExpression.getNode());
-							return nonTerminalNode;
-						}
-					}
-					return parentheticalNode;
-				}
-			}
-			return null;
-		}
-		else
-		{
-			return parseL(str);
-		}
+	protected Expression parseExpression (String str) {
+		return parseExpression(str, 0, str.length());
 	}
 
 	/**
-	 * Method checks for the production rule of L: whether the expression contains a literal
-	 * case of numbers or letters (from a-z). Also checks for whether the expression being passed
-	 * in contains any of the array of characters that should not be considered as a literal.
-	 * @param str the expression that is being checked for the production rule of L.
-	 * @return a boolean value whether it does or does not pass the test for the production rule of L
+	 * Method parses the characters between start and end of the input.
+	 * @param input the characters of the expression that is going to be parsed
+	 * @param start the index of the first character to parse
+	 * @param end the index after the last character to parse
+	 * @return the parsed, flattened expression, or null if the input is not a valid expression
 	 */
-	
-	private static Expression parseL(String str)
-	{
-		char [] unallowedCharacters = {'*', '+', '~', '`', '!', '@', '#', '$', '%', '^', '&', '(', ')', '-', '_', '=', '{', '[', '}', ']', ':', ';', '"', '\\', '\'', '?',
-										'/', '>', '.', '<', ',', '|'}; 
-		for(int i = 0; i < unallowedCharacters.length; i++)
-		{
-			for(int j = 0; j < str.toCharArray().length; j++)
-			{
-				if(str.toCharArray()[j] == unallowedCharacters[i])
-				{
-					return null;
-				}
-			}
+
+	protected Expression parseExpression (CharSequence input, int start, int end) {
+		try {
+			return parseTokens(input, start, end);
+		} catch (ExpressionParseException epe) {
+			return null;
 		}
-		return new LiteralExpression(str);
 	}
 
 	/**
-	 * Checks if the expression being passed in is a valid expression that can be parsed.
-	 * @param str the String representation of the expression
-	 * @param operator the character representation of the operator that may be passed in (+,*,(), or a literal)
-	 * @param testLeftSubexpression function that tests for the left part of the expression (before the operator)
-	 * @param testRightSubexpression function that tests for the right part of the expression (after the operator)
-	 * @return a boolean value of whether or not the expression that is being passed in is valid to parse
+	 * Splits the characters between start and end of the input into tokens and reads the tokens once
+	 * from left to right: an operand (a literal or an open parenthesis) is expected at the start and
+	 * after every operator, and an operator, a close parenthesis or the end of the input is expected
+	 * after every operand.
+	 * @param input the characters of the expression that is going to be parsed
+	 * @param start the index of the first character to parse
+	 * @param end the index after the last character to parse
+	 * @return the parsed, flattened expression
+	 * @throws ExpressionParseException if the input is not a valid expression; its offset is the index
+	 * of the first character that could not be parsed
 	 */
 
-	/*
-	private static boolean isValidExpression(String str)
-	{
-		int occurencesOfOpenParentheses = Utility.numberOfOccurences(str, '(');
-		int occurencesOfClosedParentheses = Utility.numberOfOccurences(str, ')');
-		char [] base10Digits = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
-		
-		
-		if(str.charAt(0) == ')' || str.charAt(0) == '+' || str.charAt(0) == '*')
-		{
-			return false;
-		}
-		else if(str.charAt(str.length() - 1) == '(' || str.charAt(str.length() - 1) == '+' || str.charAt(str.length() - 1) == '*')
-		{
-			return false;
-		}
-		else if(occurencesOfOpenParentheses != occurencesOfClosedParentheses)
-		{
-			return false;
-		}
-		else 
-		{
-			for(int i = 0; i < str.length(); i++)
+	private Expression parseTokens (CharSequence input, int start, int end) throws ExpressionParseException {
+		final ExpressionLexer lexer = _lexer.get();
+		if (!lexer.tokenize(input, start, end)) {
+			throw new ExpressionParseException("Invalid character at offset " + lexer.getErrorOffset() + ": " + input.subSequence(start, end), lexer.getErrorOffset());
+		}
+		final int[] tokens = lexer.getTokens();
+		final int numberOfTokens = lexer.getNumberOfTokens();
+		final Stack<Frame> frames = new Stack<Frame>();
+		Frame frame = new Frame();
+		boolean expectingOperand = true;
+		for(int i = 0; i < numberOfTokens; i++)
+		{
+			int kind = tokens[i * ExpressionLexer.TOKEN_SIZE];
+			int tokenStart = tokens[i * ExpressionLexer.TOKEN_SIZE + 1];
+			if(expectingOperand && kind == ExpressionLexer.OPEN_PARENTHESIS)
+			{
+				frames.push(frame);
+				frame = new Frame();
+			}
+			else if(expectingOperand && kind == ExpressionLexer.LITERAL)
+			{
+				frame._factors.add(new LiteralExpression(input, tokenStart, tokenStart + tokens[i * ExpressionLexer.TOKEN_SIZE + 2]));
+				expectingOperand = false;
+			}
+			else if(!expectingOperand && kind == ExpressionLexer.TIMES)
+			{
+				expectingOperand = true;
+			}
+			else if(!expectingOperand && kind == ExpressionLexer.PLUS)
+			{
+				frame.endTerm();
+				expectingOperand = true;
+			}
+			else if(!expectingOperand && kind == ExpressionLexer.CLOSE_PARENTHESIS && !frames.isEmpty())
+			{
+				Expression parentheticalExpression = buildParenthetical(frame.end());
+				frame = frames.pop();
+				frame._factors.add(parentheticalExpression);
+			}
+			else
 			{
-				for(int j = 0; j < base10Digits.length; j++)
-				{	
-					if(str.charAt(i) == base10Digits[j])
-					{
-						if(i + 1 != str.length() && str.charAt(i+1) == '(')
-						{
-							return false;
-						}
-						if(i - 1 > str.length() && str.charAt(i-1) == ')')
-						{
-							return false;
-						}
-					}
-				}
-				if(str.charAt(i) == '(')
-				{
-					
-				}
+				throw new ExpressionParseException("Unexpected character at offset " + tokenStart + ": " + input.subSequence(start, end), tokenStart);
 			}
 		}
-	}
-	 */
-	/**
-	 * Method parses the String representation of the expression that is being passed in. Parses through the
-	 * first production rule: E, to check if it either contains the additive case (A+M) or contains an expression
-	 * that can be parsed through the production rule of M
-	 * @param str the String representation of the expression that is going to be parsed
-	 * @return the parsed expression from the production rule methods
-	 */
-
-	protected Expression parseExpression (String str) {
-		return parseE(str); 
+		if(expectingOperand || !frames.isEmpty())
+		{
+			// The input ended right after an operator, is empty, or has unclosed parentheses
+			throw new ExpressionParseException("Unexpected end of expression: " + input.subSequence(start, end), end);
+		}
+		return frame.end();
 	}
 
 }
@@ -0,0 +1,121 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+/**
+ * The widths of characters in one font, measured once and then looked up, so the width of a text is
+ * found without creating a JavaFX node for it. Widths are added up character by character, which is
+ * exact for fonts without kerning such as the one expressions are shown in.
+ */
+
+public class TextMetrics
+{
+	private static final HashMap<Font, TextMetrics> _metricsByFont = new HashMap<Font, TextMetrics>();
+
+	private final Font _font;
+	private final double[] _asciiWidths = new double[128];
+	private final HashMap<Character, Double> _otherWidths = new HashMap<Character, Double>();
+	private final double _height;
+
+	/**
+	 * Measures a font. Needs the JavaFX toolkit.
+	 * @param font the font
+	 */
+	private TextMetrics(Font font)
+	{
+		_font = font;
+		for(char c = ' '; c < 127; c++)
+		{
+			_asciiWidths[c] = measure(c);
+		}
+		final Text text = new Text("(Ag)");
+		text.setFont(font);
+		_height = text.getLayoutBounds().getHeight();
+	}
+
+	/**
+	 * Creates metrics in which every character has the same width, e.g. for laying out expressions
+	 * without the JavaFX toolkit.
+	 * @param characterWidth the width of every character
+	 * @param height the height of a line
+	 */
+	public TextMetrics(double characterWidth, double height)
+	{
+		_font = null;
+		Arrays.fill(_asciiWidths, characterWidth);
+		_height = height;
+	}
+
+	/**
+	 * Returns the metrics of a font, measuring it the first time.
+	 * @param font the font
+	 * @return the metrics
+	 */
+	public static synchronized TextMetrics of(Font font)
+	{
+		TextMetrics metrics = _metricsByFont.get(font);
+		if(metrics == null)
+		{
+			metrics = new TextMetrics(font);
+			_metricsByFont.put(font, metrics);
+		}
+		return metrics;
+	}
+
+	private double measure(char c)
+	{
+		final Text text = new Text(String.valueOf(c));
+		text.setFont(_font);
+		return text.getLayoutBounds().getWidth();
+	}
+
+	/**
+	 * @return the font, or null for metrics with a fixed character width
+	 */
+	public Font getFont()
+	{
+		return _font;
+	}
+
+	/**
+	 * @return the height of a line of text
+	 */
+	public double getHeight()
+	{
+		return _height;
+	}
+
+	/**
+	 * @param text the text
+	 * @return the width of the text
+	 */
+	public double getWidth(CharSequence text)
+	{
+		double width = 0;
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if(c < 128)
+			{
+				width += _asciiWidths[c];
+			}
+			else if(_font == null)
+			{
+				width += _asciiWidths[0];
+			}
+			else
+			{
+				Double otherWidth = _otherWidths.get(c);
+				if(otherWidth == null)
+				{
+					otherWidth = measure(c);
+					_otherWidths.put(c, otherWidth);
+				}
+				width += otherWidth;
+			}
+		}
+		return width;
+	}
+}
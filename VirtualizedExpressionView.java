@@ -0,0 +1,239 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+
+/**
+ * Shows an expression of any size with only as many Labels as fit in the visible part, plus a margin
+ * of half a view width on both sides. The positions of all tokens come from an ExpressionLayout; on
+ * every layout pass the view gives each token in the window a Label, taking it from a pool of unused
+ * Labels, and returns the Labels of tokens that left the window to the pool. Scrolling (or panning with
+ * a trackpad) moves the window along the line.
+ */
+
+public class VirtualizedExpressionView extends Region implements ExpressionLayoutView
+{
+	private final ExpressionLayout _layout;
+	private final double _originX, _originY;
+	private double _scrollX;
+
+	/**
+	 * Labels of the tokens in the window, by token, and Labels of the dragged copy.
+	 */
+	private final HashMap<Integer, Label> _labels = new HashMap<Integer, Label>();
+	private final ArrayList<Label> _ghostLabels = new ArrayList<Label>();
+	private final ArrayDeque<Label> _unusedLabels = new ArrayDeque<Label>();
+
+	private final Region _focusBorder = new Region();
+	private ExpressionNode _focus, _ghost;
+	private double _ghostTranslateX, _ghostTranslateY;
+
+	/**
+	 * @param layout the layout of the expression to show
+	 * @param originX the x-coordinate in the view where the line starts when the view is not scrolled
+	 * @param originY the y-coordinate in the view of the top of the line
+	 */
+	public VirtualizedExpressionView(ExpressionLayout layout, double originX, double originY)
+	{
+		_layout = layout;
+		_originX = originX;
+		_originY = originY;
+		_focusBorder.setBorder(ExpressionNodeView.RED_BORDER);
+		_focusBorder.setVisible(false);
+		getChildren().add(_focusBorder);
+		final Rectangle clip = new Rectangle();
+		clip.widthProperty().bind(widthProperty());
+		clip.heightProperty().bind(heightProperty());
+		setClip(clip);
+		setOnScroll(event -> setScrollX(_scrollX - event.getDeltaX() - event.getDeltaY()));
+	}
+
+	public ExpressionLayout getExpressionLayout()
+	{
+		return _layout;
+	}
+
+	public Node getNode()
+	{
+		return this;
+	}
+
+	public double toLayoutX(double x)
+	{
+		return x - _originX + _scrollX;
+	}
+
+	public double toLayoutY(double y)
+	{
+		return y - _originY;
+	}
+
+	/**
+	 * @return the distance the line is scrolled to the left
+	 */
+	public double getScrollX()
+	{
+		return _scrollX;
+	}
+
+	/**
+	 * Scrolls the line, as far as there is anything to scroll to.
+	 * @param scrollX the distance to scroll the line to the left
+	 */
+	public void setScrollX(double scrollX)
+	{
+		_scrollX = Math.max(0, Math.min(scrollX, _layout.getWidth() + 2 * _originX - getWidth()));
+		requestLayout();
+	}
+
+	public void setFocus(ExpressionNode expression)
+	{
+		_focus = expression;
+		requestLayout();
+	}
+
+	public void setGhost(ExpressionNode expression, double translateX, double translateY)
+	{
+		_ghost = expression;
+		_ghostTranslateX = translateX;
+		_ghostTranslateY = translateY;
+		requestLayout();
+	}
+
+	public void refresh(ExpressionNode expression)
+	{
+		_layout.update(expression);
+		requestLayout();
+	}
+
+	/**
+	 * Removes all Labels, shown or unused, and gives them back to the pool of ExpressionNodeView.
+	 */
+	public void release()
+	{
+		for(Label label : _labels.values())
+		{
+			_unusedLabels.push(label);
+		}
+		_labels.clear();
+		_unusedLabels.addAll(_ghostLabels);
+		_ghostLabels.clear();
+		// Everything but the focus border is a Label
+		getChildren().setAll(_focusBorder);
+		for(Label label : _unusedLabels)
+		{
+			ExpressionNodeView.releaseLabel(label);
+		}
+		_unusedLabels.clear();
+	}
+
+	protected double computePrefWidth(double height)
+	{
+		return _layout.getWidth() + 2 * _originX;
+	}
+
+	protected double computePrefHeight(double width)
+	{
+		return _originY + 2 * _layout.getHeight();
+	}
+
+	/**
+	 * Gives every token in the window a Label and returns all other Labels to the pool.
+	 */
+	protected void layoutChildren()
+	{
+		final double margin = getWidth() / 2;
+		final double windowStart = toLayoutX(-margin), windowEnd = toLayoutX(getWidth() + margin);
+		final int firstToken = Math.max(0, _layout.findToken(windowStart));
+		int endToken = firstToken;
+		while(endToken < _layout.getNumberOfTokens() && _layout.getTokenX(endToken) <= windowEnd)
+		{
+			endToken++;
+		}
+
+		for(Iterator<Map.Entry<Integer, Label>> iterator = _labels.entrySet().iterator(); iterator.hasNext();)
+		{
+			Map.Entry<Integer, Label> entry = iterator.next();
+			if(entry.getKey() < firstToken || entry.getKey() >= endToken)
+			{
+				releaseLabel(entry.getValue());
+				iterator.remove();
+			}
+		}
+		for(Label label : _ghostLabels)
+		{
+			releaseLabel(label);
+		}
+		_ghostLabels.clear();
+
+		final int ghostStart = _ghost == null ? 0 : _layout.getFirstToken(_ghost);
+		final int ghostEnd = _ghost == null ? 0 : _layout.getEndToken(_ghost);
+		for(int token = firstToken; token < endToken; token++)
+		{
+			Label label = _labels.get(token);
+			if(label == null)
+			{
+				label = acquireLabel();
+				_labels.put(token, label);
+			}
+			placeLabel(label, token, 0, 0, token >= ghostStart && token < ghostEnd ? ExpressionNodeView.GHOST_COLOR : Color.BLACK);
+		}
+		if(_ghost != null)
+		{
+			// The dragged copy only needs Labels for its tokens that are in the window after moving it
+			int token = Math.max(ghostStart, _layout.findToken(windowStart - _ghostTranslateX));
+			for(; token < ghostEnd && _layout.getTokenX(token) <= windowEnd - _ghostTranslateX; token++)
+			{
+				Label label = acquireLabel();
+				label.setViewOrder(-1);
+				_ghostLabels.add(label);
+				placeLabel(label, token, _ghostTranslateX, _ghostTranslateY, Color.BLACK);
+			}
+		}
+
+		if(_focus != null && _focus != _layout.getRoot())
+		{
+			double startX = _layout.getStartX(_focus);
+			_focusBorder.resizeRelocate(_originX - _scrollX + startX, _originY, _layout.getEndX(_focus) - startX, _layout.getHeight());
+			_focusBorder.setVisible(true);
+		}
+		else
+		{
+			_focusBorder.setVisible(false);
+		}
+	}
+
+	private void placeLabel(Label label, int token, double translateX, double translateY, Color color)
+	{
+		label.setText(_layout.getTokenText(token));
+		label.setTextFill(color);
+		label.autosize();
+		label.relocate(_originX - _scrollX + _layout.getTokenX(token) + translateX, _originY + translateY);
+	}
+
+	private Label acquireLabel()
+	{
+		Label label = _unusedLabels.poll();
+		if(label == null)
+		{
+			label = ExpressionNodeView.createLabel("");
+			getChildren().add(label);
+		}
+		label.setVisible(true);
+		return label;
+	}
+
+	private void releaseLabel(Label label)
+	{
+		label.setVisible(false);
+		label.setViewOrder(0);
+		_unusedLabels.push(label);
+	}
+}